@@ -0,0 +1,124 @@
+package com.levelup.picturecache.internal;
+
+import java.io.File;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import com.levelup.picturecache.LifeSpan;
+import com.levelup.picturecache.StorageType;
+
+/**
+ * Time to pick the eviction victims with the {@link OldestFirstEvictionPolicy} compared to scanning all the items for the
+ * oldest one for each victim, as the cache did before the eviction policies
+ * <p>
+ * Evicts 1% of a {@link LifeSpan#SHORTTERM} bucket of 10k, 100k and 500k items with random access dates, or of the
+ * sizes given as arguments. It runs on a desktop JVM, only the parts of the library that don't call Android are used:
+ * <pre>
+ * javac -cp $ANDROID_HOME/platforms/android-19/android.jar:build/classes/release -d build/benchmark benchmark/java/com/levelup/picturecache/internal/EvictionPolicyBenchmark.java
+ * java -Xmx1g -cp build/benchmark:build/classes/release:$ANDROID_HOME/platforms/android-19/android.jar com.levelup.picturecache.internal.EvictionPolicyBenchmark
+ * </pre>
+ */
+public class EvictionPolicyBenchmark {
+
+	private static final int[] DEFAULT_SIZES = { 10000, 100000, 500000 };
+	/** access dates are spread over a month */
+	private static final long ACCESS_DATE_RANGE = 30 * 24 * 60 * 60 * 1000L;
+	/** runs on a small bucket before the measures, so the JIT has compiled the code */
+	private static final int WARMUP_RUNS = 3;
+	private static final int WARMUP_SIZE = 10000;
+
+	public static void main(String[] args) throws NoSuchAlgorithmException {
+		int[] sizes = DEFAULT_SIZES;
+		if (args.length != 0) {
+			sizes = new int[args.length];
+			for (int i=0; i<args.length; ++i)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		final Map<CacheKey, CacheItem> warmupItems = createItems(WARMUP_SIZE, new Random(0));
+		for (int i=0; i<WARMUP_RUNS; ++i)
+			run(warmupItems);
+
+		for (int entries : sizes) {
+			final Result result = run(createItems(entries, new Random(entries)));
+			System.out.println(entries+" entries / "+result.victims+" victims: scan "+toMillis(result.scanTime)+" ms, index "+toMillis(result.indexTime)
+					+" ms (index built in "+toMillis(result.buildTime)+" ms)");
+		}
+	}
+
+	private static class Result {
+		int victims;
+		long scanTime;
+		long buildTime;
+		long indexTime;
+	}
+
+	private static Result run(Map<CacheKey, CacheItem> items) {
+		final Result result = new Result();
+		result.victims = items.size() / 100;
+
+		final HashMap<CacheKey, CacheItem> scannedItems = new HashMap<CacheKey, CacheItem>(items);
+		final List<Long> scanVictims = new ArrayList<Long>(result.victims);
+		long start = System.nanoTime();
+		for (int i=0; i<result.victims; ++i) {
+			final Entry<CacheKey, CacheItem> victim = getOldestEntry(scannedItems, LifeSpan.SHORTTERM);
+			scannedItems.remove(victim.getKey());
+			scanVictims.add(victim.getValue().lastAccessDate);
+		}
+		result.scanTime = System.nanoTime() - start;
+
+		final EvictionPolicy policy = new OldestFirstEvictionPolicy();
+		start = System.nanoTime();
+		for (Entry<CacheKey, CacheItem> item : items.entrySet())
+			policy.add(item.getKey(), item.getValue());
+		result.buildTime = System.nanoTime() - start;
+
+		final List<Long> indexVictims = new ArrayList<Long>(result.victims);
+		start = System.nanoTime();
+		for (int i=0; i<result.victims; ++i)
+			indexVictims.add(policy.pollVictim(LifeSpan.SHORTTERM).getValue().lastAccessDate);
+		result.indexTime = System.nanoTime() - start;
+
+		// items with the same date may be picked in a different order, the dates must match
+		if (!scanVictims.equals(indexVictims))
+			throw new IllegalStateException("the index didn't pick the same victims as the scan");
+		return result;
+	}
+
+	/**
+	 * The linear scan the cache used to find each victim
+	 */
+	private static Entry<CacheKey, CacheItem> getOldestEntry(Map<CacheKey, CacheItem> items, LifeSpan lifeSpan) {
+		Entry<CacheKey, CacheItem> result = null;
+		for (Entry<CacheKey, CacheItem> entry : items.entrySet()) {
+			final CacheItem item = entry.getValue();
+			if (lifeSpan==item.getLifeSpan() && (result==null || result.getValue().lastAccessDate > item.lastAccessDate))
+				result = entry;
+		}
+		return result;
+	}
+
+	private static Map<CacheKey, CacheItem> createItems(int count, Random random) throws NoSuchAlgorithmException {
+		final long now = System.currentTimeMillis();
+		final File path = new File("benchmark");
+		final HashMap<CacheKey, CacheItem> items = new HashMap<CacheKey, CacheItem>(count * 2);
+		for (int i=0; i<count; ++i) {
+			final String url = "http://example.com/pictures/"+i+".jpg";
+			CacheItem item = new CacheItem(path, url);
+			item.setLifeSpan(LifeSpan.SHORTTERM);
+			item.lastAccessDate = now - (long) (random.nextDouble() * ACCESS_DATE_RANGE);
+			item.fileSize = 1000 + random.nextInt(50000);
+			items.put(CacheKey.newUrlBasedKey(url, 0, false, StorageType.AUTO, null), item);
+		}
+		return items;
+	}
+
+	private static String toMillis(long nanos) {
+		return String.format("%.1f", nanos / 1000000.0);
+	}
+}
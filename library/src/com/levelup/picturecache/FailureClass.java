@@ -0,0 +1,14 @@
+package com.levelup.picturecache;
+
+/**
+ * Kind of download failure, decides if a download is tried again and how long to wait before trying the URL again
+ * @see RetryPolicy
+ */
+public enum FailureClass {
+	/** the server doesn't have the content or the URL is invalid */
+	NOT_FOUND,
+	/** the host name can't be resolved, usually there is no connectivity */
+	UNKNOWN_HOST,
+	/** the connection failed, timed out or was interrupted */
+	NETWORK,
+}
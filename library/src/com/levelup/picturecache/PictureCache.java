@@ -4,28 +4,42 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import st.gaw.db.AsynchronousDbHelper;
+import st.gaw.db.AsynchronousDbOperation;
 import st.gaw.db.InMemoryHashmapDb;
 import st.gaw.db.Logger;
 import st.gaw.db.MapEntry;
 import uk.co.senab.bitmapcache.BitmapLruCache;
 import uk.co.senab.bitmapcache.BitmapLruCache.Builder;
 import uk.co.senab.bitmapcache.BitmapLruCache.RecyclePolicy;
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.ReceiverCallNotAllowedException;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.ConnectivityManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Environment;
+import android.os.StatFs;
 import android.text.TextUtils;
 
 import com.levelup.picturecache.internal.ApiLevel8;
@@ -33,8 +47,17 @@ import com.levelup.picturecache.internal.CacheItem;
 import com.levelup.picturecache.internal.CacheKey;
 import com.levelup.picturecache.internal.CacheVariant;
 import com.levelup.picturecache.internal.DownloadManager;
+import com.levelup.picturecache.internal.EvictionPolicy;
+import com.levelup.picturecache.internal.FailedDownloads;
+import com.levelup.picturecache.internal.FlushAccessDates;
+import com.levelup.picturecache.internal.FrequencySketch;
+import com.levelup.picturecache.internal.GreedyDualSizeEvictionPolicy;
+import com.levelup.picturecache.internal.HostStatistics;
+import com.levelup.picturecache.internal.HttpCacheHeaders;
+import com.levelup.picturecache.internal.OldestFirstEvictionPolicy;
 import com.levelup.picturecache.internal.PictureJobList;
 import com.levelup.picturecache.internal.RemoveExpired;
+import com.levelup.picturecache.internal.TimerWheel;
 import com.levelup.picturecache.loaders.PrecacheImageLoader;
 import com.levelup.picturecache.loaders.RemoteViewLoader;
 import com.levelup.picturecache.loaders.ViewLoader;
@@ -49,9 +72,14 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 	public final static boolean DEBUG_CACHE = false & BuildConfig.DEBUG;
 
 	/**
-	 * How many new items need to be added to the database before a purge is done
+	 * free space to keep on the cache volume, in bytes, a purge is started in the background below that
 	 */
-	private static final int MIN_ADD_BEFORE_PURGE = 7;
+	private static final long MIN_FREE_SPACE = 10 * 1024 * 1024;
+
+	/**
+	 * amount of bytes written in the cache between two checks of the free space on the cache volume
+	 */
+	private static final long FREE_SPACE_CHECK_INTERVAL = 1024 * 1024;
 
 	/**
 	 * size in bytes of the amount of storage available for files of the specified {@link LifeSpan}
@@ -81,8 +109,27 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 		return null;
 	}
 
+	/**
+	 * Number of items tracked by the admission filter, {@code 0} to disable it (the default)
+	 * <p>When enabled, a new item is only stored in a {@link LifeSpan} that is full if it was requested more often
+	 * than the item it would evict. Many pictures displayed only once won't push out the frequently used ones.</p>
+	 * @return about the number of items expected in the cache, or {@code 0}
+	 */
+	protected int getAdmissionFilterSize() {
+		return 0;
+	}
+
+	/**
+	 * Create the {@link EvictionPolicy} deciding which items are removed first when there's no more room for a {@link LifeSpan}
+	 * <p>Called during the construction of the cache, the fields of your subclass are not initialized yet</p>
+	 * @return {@link OldestFirstEvictionPolicy} by default, you can also use a {@link GreedyDualSizeEvictionPolicy} with {@link #getHostStatistics()}
+	 */
+	protected EvictionPolicy createEvictionPolicy() {
+		return new OldestFirstEvictionPolicy();
+	}
+
 	private static final String DATABASE_NAME = "PictureCachev2.sqlite";
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 5;
 	private static final String TABLE_NAME = "Pictures";
 
 	private static final String CREATE_TABLE = 
@@ -93,9 +140,35 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 					"PATH VARCHAR, " +                   // the path in the cached picture file
 					"REMOTE_DATE LONG DEFAULT 0, " +     // the last remote date using to the item (if applicable)
 					"DATE LONG not null DEFAULT -1, " +  // the date of last access to the item
+					"EXPIRATION LONG DEFAULT 0, " +      // the date after which the item is not valid (0 if it never expires)
+					"SIZE LONG DEFAULT 0, " +            // the size in bytes of the file (0 if unknown)
+					"WIDTH INTEGER DEFAULT 0, " +        // the width of the stored bitmap (0 if unknown)
+					"HEIGHT INTEGER DEFAULT 0, " +       // the height of the stored bitmap (0 if unknown)
+					"FORMAT INTEGER DEFAULT 0, " +       // the StorageType of the file (AUTO if unknown)
+					"ETAG VARCHAR, " +                   // the ETag of the HTTP response (null if none)
+					"LAST_MODIFIED LONG DEFAULT 0, " +   // the Last-Modified date of the HTTP response (0 if none)
+					"VALIDATED LONG DEFAULT 0, " +       // the date the file was last confirmed by the server (0 if unknown)
 					"PRIMARY KEY (UUID));";
 
-	private Boolean mDirAsserted;
+	/**
+	 * hits closer than that to the last recorded access of an item don't change its access date, in milliseconds
+	 */
+	private static final long ACCESS_DATE_PRECISION = 60 * 1000;
+	/**
+	 * maximum time the access dates stay only in memory, in milliseconds
+	 */
+	private static final long ACCESS_DATE_FLUSH_DELAY = 30 * 1000;
+	/**
+	 * number of modified access dates that triggers a write in the database without waiting for {@link #ACCESS_DATE_FLUSH_DELAY}
+	 */
+	private static final int ACCESS_DATE_FLUSH_COUNT = 100;
+	/**
+	 * unique suffix for the files of evicted items moved out of the way before they are deleted
+	 */
+	private static final AtomicLong sEvictedFileCount = new AtomicLong();
+
+	private volatile boolean mDirAsserted;
+	private Object mDirAssertLock;
 
 	private final OutOfMemoryHandler ooHandler;
 
@@ -106,8 +179,72 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 
 	private File mCacheFolder;
 
-	private AtomicInteger mPurgeCounterLongterm = new AtomicInteger();
-	private AtomicInteger mPurgeCounterShortterm = new AtomicInteger();
+	/**
+	 * bytes written since the last check of the free space
+	 */
+	private final AtomicLong mBytesSinceSpaceCheck = new AtomicLong();
+	/**
+	 * bytes to release on the cache volume by the next purge
+	 */
+	private final AtomicLong mBytesToFree = new AtomicLong();
+	/**
+	 * a purge is scheduled and has not started yet, the bursts of new items don't schedule more
+	 */
+	private final AtomicBoolean mPurgePending = new AtomicBoolean();
+
+	/**
+	 * lock-free copy of the items in memory for the lookups, only modified under {@link #mDataLock} along with {@link #getMap()}
+	 */
+	private ConcurrentHashMap<CacheKey, CacheItem> mIndex;
+
+	/**
+	 * total size in bytes of the files in the cache per {@link LifeSpan}, indexed by {@link LifeSpan#ordinal()}
+	 * <p>only modified under {@link #mDataLock}, can be read without it</p>
+	 */
+	private AtomicLong[] mCacheSizes;
+
+	/**
+	 * order in which the items of each {@link LifeSpan} are evicted, only used under {@link #mDataLock}
+	 */
+	private EvictionPolicy mEvictionPolicy;
+
+	private HostStatistics mHostStatistics;
+
+	/**
+	 * URLs that failed to download recently, they are not downloaded again until their backoff delay is over
+	 */
+	private final FailedDownloads mFailedDownloads = new FailedDownloads();
+
+	/**
+	 * retries the failed URLs when the network comes back, registered on the application context until {@link #release()}
+	 */
+	private BroadcastReceiver mConnectivityReceiver;
+
+	private volatile RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+
+	/**
+	 * expiration dates of the items that have one, only used under {@link #mDataLock}
+	 */
+	private TimerWheel mExpirations;
+
+	/**
+	 * items which access date changed since the last {@link FlushAccessDates}, only used under {@link #mDataLock}
+	 */
+	private HashMap<CacheKey, CacheItem> mAccessedItems;
+	private boolean mAccessFlushScheduled;
+
+	private final Runnable mScheduleAccessFlush = new Runnable() {
+		@Override
+		public void run() {
+			scheduleCustomOperation(new FlushAccessDates());
+		}
+	};
+
+	/**
+	 * request frequencies used to decide if a new item is worth storing, {@code null} if not used
+	 * <p>incremented without a lock on each request, see {@link FrequencySketch} for why racy updates are fine</p>
+	 */
+	private final FrequencySketch mAdmissionFilter;
 
 	@Override
 	protected final String getMainTableName() {
@@ -127,6 +264,14 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 		int indexRemoteDate = c.getColumnIndex("REMOTE_DATE");
 		int indexDate = c.getColumnIndex("DATE");
 		int indexUUID = c.getColumnIndex("UUID");
+		int indexExpiration = c.getColumnIndex("EXPIRATION");
+		int indexSize = c.getColumnIndex("SIZE");
+		int indexWidth = c.getColumnIndex("WIDTH");
+		int indexHeight = c.getColumnIndex("HEIGHT");
+		int indexFormat = c.getColumnIndex("FORMAT");
+		int indexETag = c.getColumnIndex("ETAG");
+		int indexLastModified = c.getColumnIndex("LAST_MODIFIED");
+		int indexValidated = c.getColumnIndex("VALIDATED");
 
 		final String url = c.getString(indexURL);
 
@@ -135,7 +280,7 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 			indexRemoteDate = c.getColumnIndex("TOUIT_ID");
 
 			int indexPathRounded = c.getColumnIndex("PATHR");
-			int indexHeight = c.getColumnIndex("HEIGHT");
+			indexHeight = c.getColumnIndex("HEIGHT");
 			int indexWidthBased = c.getColumnIndex("WIBASE");
 
 			String path = c.getString(indexPath);
@@ -152,6 +297,7 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 					val.setLifeSpan(LifeSpan.fromStorage(c.getInt(indexType)));
 					val.remoteDate = c.getLong(indexRemoteDate);
 					val.lastAccessDate = c.getLong(indexDate);
+					val.fileSize = val.path.length();
 
 					CacheKey key = CacheKey.newUUIDBasedKey(c.getString(indexUUID), c.getInt(indexHeight), widthBased, StorageType.AUTO, null);
 
@@ -167,6 +313,7 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 					val.setLifeSpan(LifeSpan.fromStorage(c.getInt(indexType)));
 					val.remoteDate = c.getLong(indexRemoteDate);
 					val.lastAccessDate = c.getLong(indexDate);
+					val.fileSize = val.path.length();
 
 					CacheKey key = CacheKey.newUUIDBasedKey(c.getString(indexUUID), c.getInt(indexHeight), widthBased, StorageType.AUTO, "_r");
 
@@ -188,16 +335,92 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 			val.setLifeSpan(LifeSpan.fromStorage(c.getInt(indexType)));
 			val.remoteDate = c.getLong(indexRemoteDate);
 			val.lastAccessDate = c.getLong(indexDate);
-			if (!picSrc.exists() || !picSrc.isFile()) {
-				LogManager.logger.w(LOG_TAG, "trying to load a missing file for "+val);
-				remove(key); // make sure we don't use it again
-				return null;
+			if (indexExpiration != -1)
+				val.expirationDate = c.getLong(indexExpiration);
+			if (indexSize != -1) {
+				val.fileSize = c.getLong(indexSize);
+				val.width = c.getInt(indexWidth);
+				val.height = c.getInt(indexHeight);
+				val.format = StorageType.fromStorage(c.getInt(indexFormat));
+			}
+			if (indexETag != -1) {
+				val.eTag = c.getString(indexETag);
+				val.lastModified = c.getLong(indexLastModified);
+			}
+			if (indexValidated != -1)
+				val.validationDate = c.getLong(indexValidated);
+			if (val.fileSize <= 0) {
+				// stored before the size was saved, we need to read it from the file
+				if (!picSrc.exists() || !picSrc.isFile()) {
+					LogManager.logger.w(LOG_TAG, "trying to load a missing file for "+val);
+					remove(key); // make sure we don't use it again
+					return null;
+				}
+				val.fileSize = picSrc.length();
 			}
 
 			return new MapEntry<CacheKey, CacheItem>(key, val);
 		}
 	}
 
+	@Override
+	protected void putEntry(MapEntry<CacheKey, CacheItem> entry) {
+		super.putEntry(entry);
+		mIndex.put(entry.getKey(), entry.getValue());
+		indexItem(entry.getKey(), entry.getValue());
+	}
+
+	@Override
+	public CacheItem put(CacheKey key, CacheItem value) {
+		mDataLock.lock();
+		try {
+			CacheItem old = super.put(key, value);
+			mIndex.put(key, value);
+			if (null!=old)
+				unindexItem(key, old);
+			indexItem(key, value);
+			return old;
+		} finally {
+			mDataLock.unlock();
+		}
+	}
+
+	/**
+	 * Lock-free lookup of a cache item, does not wait for the cache to be modified
+	 * <p>Until the database is loaded in memory it waits for the loading like before</p>
+	 */
+	@Override
+	public CacheItem get(CacheKey key) {
+		return getIndexed(key);
+	}
+
+	private CacheItem getIndexed(CacheKey key) {
+		if (!isDataLoaded())
+			return super.get(key);
+		return mIndex.get(key);
+	}
+
+	@Override
+	public CacheItem remove(CacheKey key) {
+		mDataLock.lock();
+		try {
+			CacheItem old = super.remove(key);
+			if (null!=old) {
+				mIndex.remove(key);
+				unindexItem(key, old);
+			}
+			return old;
+		} finally {
+			mDataLock.unlock();
+		}
+	}
+
+	@Override
+	protected void startLoadingInMemory() {
+		super.startLoadingInMemory();
+		clearIndexes();
+	}
+
 	@Override
 	protected ContentValues getValuesFromData(MapEntry<CacheKey, CacheItem> data, SQLiteDatabase dbToFill) throws RuntimeException {
 		if (data.getValue().path==null) {
@@ -205,13 +428,21 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 			throw new RuntimeException("empty path for "+data);
 		}
 
-		ContentValues values = new ContentValues(6);
+		ContentValues values = new ContentValues(13);
 		values.put("UUID", data.getKey().serialize());
 		values.put("SRC_URL", data.getValue().URL);
 		values.put("TYPE", data.getValue().getLifeSpan().toStorage());
 		values.put("PATH", data.getValue().path.getAbsolutePath());
 		values.put("REMOTE_DATE", data.getValue().remoteDate);
 		values.put("DATE", data.getValue().lastAccessDate);
+		values.put("EXPIRATION", data.getValue().expirationDate);
+		values.put("SIZE", data.getValue().fileSize);
+		values.put("WIDTH", data.getValue().width);
+		values.put("HEIGHT", data.getValue().height);
+		values.put("FORMAT", data.getValue().format.toStorage());
+		values.put("ETAG", data.getValue().eTag);
+		values.put("LAST_MODIFIED", data.getValue().lastModified);
+		values.put("VALIDATED", data.getValue().validationDate);
 
 		return values;
 	}
@@ -238,6 +469,23 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 		this(context, logger, ooHandler, bitmapCacheSize, null);
 	}
 
+	/**
+	 * Doesn't reference the cache, so a cache that is not released doesn't leak through the application context
+	 */
+	private static class ConnectivityReceiver extends BroadcastReceiver {
+		private final FailedDownloads failedDownloads;
+
+		ConnectivityReceiver(FailedDownloads failedDownloads) {
+			this.failedDownloads = failedDownloads;
+		}
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false))
+				failedDownloads.onConnectivityChanged();
+		}
+	}
+
 	private static class InitCookie {
 		final Context context;
 		final String folderName;
@@ -286,6 +534,17 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 
 		mJobManager = new DownloadManager(this);
 
+		try {
+			final BroadcastReceiver receiver = new ConnectivityReceiver(mFailedDownloads);
+			context.getApplicationContext().registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+			mConnectivityReceiver = receiver;
+		} catch (ReceiverCallNotAllowedException e) {
+			LogManager.logger.w(LOG_TAG, "could not watch the connectivity changes");
+		}
+
+		final int admissionFilterSize = getAdmissionFilterSize();
+		this.mAdmissionFilter = admissionFilterSize > 0 ? new FrequencySketch(admissionFilterSize) : null;
+
 		//getWritableDatabase().setLockingEnabled(false); // we do our own thread protection
 	}
 
@@ -293,7 +552,17 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 	protected void preloadInit(Object c) {
 		super.preloadInit(c);
 
-		mDirAsserted = Boolean.FALSE;
+		mDirAssertLock = new Object();
+
+		mCacheSizes = new AtomicLong[LifeSpan.values().length];
+		for (int i=0; i<mCacheSizes.length; ++i)
+			mCacheSizes[i] = new AtomicLong();
+		mIndex = new ConcurrentHashMap<CacheKey, CacheItem>();
+		mHostStatistics = new HostStatistics();
+		mAccessedItems = new HashMap<CacheKey, CacheItem>();
+		mExpirations = new TimerWheel(System.currentTimeMillis());
+		mEvictionPolicy = createEvictionPolicy();
+		if (null==mEvictionPolicy) throw new NullPointerException("we need an EvictionPolicy");
 
 		InitCookie cookie = (InitCookie) c;
 
@@ -320,6 +589,40 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 		LogManager.logger.w(LOG_TAG, "Upgrading PictureCache from " + oldVersion + " to " + newVersion);
+		if (oldVersion < 2) {
+			try {
+				db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN EXPIRATION LONG DEFAULT 0");
+			} catch (SQLException e) {
+				LogManager.logger.w(LOG_TAG, "failed to add the expiration column", e);
+			}
+		}
+		if (oldVersion < 3) {
+			final String[] newColumns = { "SIZE LONG DEFAULT 0", "WIDTH INTEGER DEFAULT 0", "HEIGHT INTEGER DEFAULT 0", "FORMAT INTEGER DEFAULT 0" };
+			for (String column : newColumns) {
+				try {
+					db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + column);
+				} catch (SQLException e) {
+					LogManager.logger.w(LOG_TAG, "failed to add the column " + column, e);
+				}
+			}
+		}
+		if (oldVersion < 4) {
+			final String[] newColumns = { "ETAG VARCHAR", "LAST_MODIFIED LONG DEFAULT 0" };
+			for (String column : newColumns) {
+				try {
+					db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + column);
+				} catch (SQLException e) {
+					LogManager.logger.w(LOG_TAG, "failed to add the column " + column, e);
+				}
+			}
+		}
+		if (oldVersion < 5) {
+			try {
+				db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN VALIDATED LONG DEFAULT 0");
+			} catch (SQLException e) {
+				LogManager.logger.w(LOG_TAG, "failed to add the validation column", e);
+			}
+		}
 	}
 
 	/**
@@ -380,13 +683,15 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 
 	private void assertFolderExists() throws IOException, SecurityException {
 		//LogManager.logger.e(TAG, "assertFolderExists " +DirAsserted);
-		synchronized (mDirAsserted) {
+		if (mDirAsserted)
+			return;
+		synchronized (mDirAssertLock) {
 			if (!mDirAsserted) {
 				//LogManager.logger.i("data dir=" + Environment.getDataDirectory().getAbsolutePath());
 				if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
 					//LogManager.logger.w(TAG, "cache dir=" + dir.getAbsolutePath()+" exists:"+dir.exists());
 					if (mCacheFolder.exists() && mCacheFolder.isDirectory())
-						mDirAsserted = Boolean.TRUE;
+						mDirAsserted = true;
 					else {
 						mDirAsserted = mCacheFolder.mkdirs();
 						//LogManager.logger.w(TAG, "cache dir=" + dir.getAbsolutePath()+" asserted:"+DirAsserted);
@@ -411,38 +716,318 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 		}
 	}
 
+	/**
+	 * @param lifeSpan type of {@link LifeSpan}
+	 * @return the total size in bytes of the files in the cache for that {@link LifeSpan}
+	 */
 	public long getCacheSize(LifeSpan lifeSpan) {
-		long result = 0;
+		return mCacheSizes[lifeSpan.ordinal()].get();
+	}
+
+	/**
+	 * add the item in the size counters and the {@link EvictionPolicy}
+	 * <p>must be called under {@link #mDataLock}, the item {@link LifeSpan}, size and access date must not change until {@link #unindexItem(CacheKey, CacheItem)}</p>
+	 */
+	private void indexItem(CacheKey key, CacheItem item) {
+		if (null!=item.getLifeSpan())
+			mCacheSizes[item.getLifeSpan().ordinal()].addAndGet(item.fileSize);
+		mEvictionPolicy.add(key, item);
+		if (0!=item.expirationDate)
+			mExpirations.schedule(key, item.expirationDate);
+	}
+
+	/**
+	 * remove the item from the size counters and the {@link EvictionPolicy}
+	 * <p>must be called under {@link #mDataLock}</p>
+	 */
+	private void unindexItem(CacheKey key, CacheItem item) {
+		if (null!=item.getLifeSpan())
+			mCacheSizes[item.getLifeSpan().ordinal()].addAndGet(-item.fileSize);
+		mEvictionPolicy.remove(key);
+		if (0!=item.expirationDate)
+			mExpirations.cancel(key);
+	}
+
+	private void clearIndexes() {
+		mIndex.clear();
+		for (AtomicLong cacheSize : mCacheSizes)
+			cacheSize.set(0);
+		mEvictionPolicy.clear();
+		mAccessedItems.clear();
+		mExpirations.clear();
+	}
+
+	private static final class ExpiredEntry implements Entry<CacheKey, CacheItem> {
+		private final CacheKey key;
+		private final CacheItem item;
+
+		ExpiredEntry(CacheKey key, CacheItem item) {
+			this.key = key;
+			this.item = item;
+		}
+
+		@Override
+		public CacheKey getKey() {
+			return key;
+		}
+
+		@Override
+		public CacheItem getValue() {
+			return item;
+		}
+
+		@Override
+		public CacheItem setValue(CacheItem value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * remove the expired items from memory, they are removed from the database and disk in the background
+	 * <p>items with HTTP validators are kept to be revalidated when they are used again</p>
+	 * <p>must be called under {@link #mDataLock}</p>
+	 * @param keys the keys of the expired items, may be {@code null}
+	 */
+	private void removeExpiredEntries(List<CacheKey> keys) {
+		if (null==keys)
+			return;
+		final List<Entry<CacheKey, CacheItem>> victims = new ArrayList<Entry<CacheKey, CacheItem>>(keys.size());
+		for (CacheKey key : keys) {
+			CacheItem item = getMap().get(key);
+			if (null!=item && !item.hasValidators()) {
+				getMap().remove(key);
+				mIndex.remove(key);
+				unindexItem(key, item);
+				victims.add(new ExpiredEntry(key, item));
+			}
+		}
+		if (victims.isEmpty())
+			return;
+
+		if (DEBUG_CACHE) LogManager.logger.d(LOG_TAG, victims.size()+" items expired");
+		scheduleCustomOperation(new AsynchronousDbOperation<MapEntry<CacheKey,CacheItem>>() {
+			@Override
+			public void runInMemoryDbOperation(AsynchronousDbHelper<MapEntry<CacheKey, CacheItem>> db) {
+				RemoveExpired.removeEntries(PictureCache.this, victims);
+			}
+		});
+	}
+
+	/**
+	 * record a cache hit on the item, its new access date is written in the database later with the other hits
+	 * <p>never waits for {@link #mDataLock}, the hit is not recorded if the cache is being modified</p>
+	 */
+	private void touchItem(CacheKey key) {
+		final CacheItem indexed = mIndex.get(key);
+		final long now = System.currentTimeMillis();
+		if (null==indexed || now - indexed.lastAccessDate < ACCESS_DATE_PRECISION)
+			return;
+		if (!mDataLock.tryLock())
+			return;
+		try {
+			final CacheItem item = getMap().get(key);
+			if (null==item)
+				return;
+
+			unindexItem(key, item);
+			item.lastAccessDate = now;
+			indexItem(key, item);
+
+			mAccessedItems.put(key, item);
+			if (mAccessedItems.size() >= ACCESS_DATE_FLUSH_COUNT) {
+				UIHandler.instance.removeCallbacks(mScheduleAccessFlush);
+				mAccessFlushScheduled = true;
+				scheduleCustomOperation(new FlushAccessDates());
+			} else if (!mAccessFlushScheduled) {
+				mAccessFlushScheduled = true;
+				UIHandler.instance.postDelayed(mScheduleAccessFlush, ACCESS_DATE_FLUSH_DELAY);
+			}
+		} finally {
+			mDataLock.unlock();
+		}
+	}
+
+	/**
+	 * Write the access dates recorded on cache hits in the database in a single transaction
+	 * <p>Must be called from an operation running on the database thread, see {@link FlushAccessDates}</p>
+	 */
+	public void writeAccessDates() {
+		final ArrayList<String> uuids;
+		final long[] dates;
 		mDataLock.lock();
 		try {
-			Iterator<Entry<CacheKey, CacheItem>> v = getMap().entrySet().iterator();
-			Entry<CacheKey, CacheItem> k;
-			while (v.hasNext()) {
-				k = v.next();
-				if (k.getValue().getLifeSpan()!=lifeSpan) continue;
-				result += k.getValue().path.length();
+			mAccessFlushScheduled = false;
+			uuids = new ArrayList<String>(mAccessedItems.size());
+			dates = new long[mAccessedItems.size()];
+			for (Entry<CacheKey, CacheItem> accessed : mAccessedItems.entrySet()) {
+				if (getMap().get(accessed.getKey()) != accessed.getValue())
+					continue; // removed or replaced since the hit
+				dates[uuids.size()] = accessed.getValue().lastAccessDate;
+				uuids.add(accessed.getKey().serialize());
 			}
-		} catch (Throwable e) {
-			// workaround to avoid locking mData during read/write in the DB
-			LogManager.logger.e(LOG_TAG, "getCacheSize failed", e);
+			mAccessedItems.clear();
 		} finally {
 			mDataLock.unlock();
 		}
-		return result;
+
+		if (uuids.isEmpty())
+			return;
+
+		SQLiteDatabase db = getWritableDatabase();
+		SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME + " SET DATE=? WHERE UUID=?");
+		db.beginTransaction();
+		try {
+			for (int i=0; i<uuids.size(); ++i) {
+				update.bindLong(1, dates[i]);
+				update.bindString(2, uuids.get(i));
+				update.execute();
+			}
+			db.setTransactionSuccessful();
+		} catch (SQLException e) {
+			LogManager.logger.w(LOG_TAG, "failed to write the access date of "+uuids.size()+" items", e);
+		} finally {
+			db.endTransaction();
+			update.close();
+		}
+	}
+
+	/**
+	 * @return the download statistics of each host, used by {@link GreedyDualSizeEvictionPolicy}
+	 */
+	public HostStatistics getHostStatistics() {
+		return mHostStatistics;
+	}
+
+	/**
+	 * Stop watching the connectivity changes, call it when the cache is not used anymore
+	 */
+	public void release() {
+		final BroadcastReceiver receiver = mConnectivityReceiver;
+		if (null!=receiver) {
+			mConnectivityReceiver = null;
+			try {
+				mContext.getApplicationContext().unregisterReceiver(receiver);
+			} catch (IllegalArgumentException e) {
+				// already unregistered
+			}
+		}
+	}
+
+	/**
+	 * @return the URLs that failed to download recently and are not downloaded again yet
+	 */
+	public FailedDownloads getFailedDownloads() {
+		return mFailedDownloads;
 	}
 
+	/**
+	 * Download this URL again on the next request even if it failed recently
+	 * @param URL the URL of the picture, {@code null} to retry all the URLs that failed
+	 */
+	public void retryFailedDownloads(String URL) {
+		if (null==URL)
+			mFailedDownloads.clearAll();
+		else
+			mFailedDownloads.clear(URL);
+	}
+
+	/**
+	 * @return how the failed downloads are tried again when the {@link PictureJob} doesn't have its own {@link RetryPolicy}
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return mRetryPolicy;
+	}
+
+	/**
+	 * Set how the failed downloads are tried again when the {@link PictureJob} doesn't have its own {@link RetryPolicy}
+	 * @param retryPolicy {@link RetryPolicy#DEFAULT} by default, {@link RetryPolicy#NO_RETRY} to never try again
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		if (null==retryPolicy) throw new NullPointerException("use RetryPolicy.NO_RETRY to disable retries");
+		mRetryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Set the maximum number of pictures downloaded at the same time from the same host, the other hosts take turns on the remaining downloads
+	 * @param maxDownloads {@link DownloadManager#DEFAULT_DOWNLOADS_PER_HOST} by default
+	 */
+	public void setMaxDownloadsPerHost(int maxDownloads) {
+		mJobManager.setMaxDownloadsPerHost(maxDownloads);
+	}
+
+	/**
+	 * @param host the host part of the URLs
+	 * @return the number of pictures waiting to be downloaded from this host, see {@link HostStatistics#getHostDownloadTime(String)} for the download time
+	 */
+	public int getQueuedDownloads(String host) {
+		return mJobManager.getQueuedDownloads(host);
+	}
+
+	/**
+	 * @param host the host part of the URLs
+	 * @return the number of pictures being downloaded from this host
+	 */
+	public int getRunningDownloads(String host) {
+		return mJobManager.getRunningDownloads(host);
+	}
+
+	/**
+	 * Remove items of that {@link LifeSpan} from memory, in the {@link EvictionPolicy} order, until their total size fits in {@code maxSize}
+	 * <p>The items are not removed from the database, use {@link #removeFromDatabase(List)}, and their files are not deleted</p>
+	 * @param lifeSpan type of {@link LifeSpan}
+	 * @param maxSize the total size in bytes to reach for that {@link LifeSpan}
+	 * @return the items removed from the cache, in eviction order
+	 */
+	public List<Entry<CacheKey, CacheItem>> evictEntries(LifeSpan lifeSpan, long maxSize) {
+		List<Entry<CacheKey, CacheItem>> victims = new ArrayList<Entry<CacheKey, CacheItem>>();
+		mDataLock.lock();
+		try {
+			while (getCacheSize(lifeSpan) > maxSize) {
+				Entry<CacheKey, CacheItem> victim = mEvictionPolicy.pollVictim(lifeSpan);
+				if (victim==null)
+					break;
+				getMap().remove(victim.getKey());
+				mIndex.remove(victim.getKey());
+				unindexItem(victim.getKey(), victim.getValue());
+				victims.add(victim);
+			}
+		} finally {
+			mDataLock.unlock();
+		}
+		return victims;
+	}
+
+	/**
+	 * Remove the items from the database in a single transaction
+	 * <p>Must be called from an operation running on the database thread, see {@link RemoveExpired}</p>
+	 * @param entries items already removed from memory with {@link #evictEntries(LifeSpan, long)}
+	 */
+	public void removeFromDatabase(List<Entry<CacheKey, CacheItem>> entries) {
+		SQLiteDatabase db = getWritableDatabase();
+		SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE UUID=?");
+		db.beginTransaction();
+		try {
+			for (Entry<CacheKey, CacheItem> entry : entries) {
+				delete.bindString(1, entry.getKey().serialize());
+				delete.execute();
+			}
+			db.setTransactionSuccessful();
+		} catch (SQLException e) {
+			LogManager.logger.w(LOG_TAG, "failed to remove "+entries.size()+" items from the database", e);
+		} finally {
+			db.endTransaction();
+			delete.close();
+		}
+	}
+
+	/**
+	 * @param lifeSpan type of {@link LifeSpan}
+	 * @return the next item to evict for that {@link LifeSpan}, according to the {@link EvictionPolicy}, or {@code null} if there is none
+	 */
 	public Entry<CacheKey, CacheItem> getCacheOldestEntry(LifeSpan lifeSpan) {
-		// LogManager.logger.d(TAG, "getCacheOldest in");
 		mDataLock.lock();
 		try {
-			Entry<CacheKey, CacheItem> result = null;
-			for (Entry<CacheKey, CacheItem> entry : getMap().entrySet()) {
-				final CacheItem item = entry.getValue();
-				if (lifeSpan==item.getLifeSpan() && (result==null || result.getValue().lastAccessDate > item.lastAccessDate))
-					result = entry;
-			}
-			// LogManager.logger.e(TAG, "getCacheOldest out with "+result);
-			return result;
+			return mEvictionPolicy.peekVictim(lifeSpan);
 		} finally {
 			mDataLock.unlock();
 		}
@@ -459,157 +1044,223 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 	 * @param networkLoader TODO
 	 */
 	void doPictureJob(PictureJob job) {
-		mDataLock.lock();
-		try {
-			if (DEBUG_CACHE) LogManager.logger.d(LOG_TAG, "getting picture "+job.url+" into "+job.mDisplayHandler+" key:"+job.key);
-			CacheItem v = getMap().get(job.key);
-
-			if (TextUtils.isEmpty(job.url) && null!=v) {
-				// get the URL matching the UUID if we don't have one set
-				job = job.cloneBuilder().setURL(v.URL).build();
-				//LogManager.logger.i("no URL specified for "+key+" using "+URL);
-			}
-			
-			//LogManager.logger.v(TAG, "load "+URL+" in "+target+" key:"+key);
-			String wasPreviouslyLoading = job.mConcurrencyHandler.setLoadingURL(job.url, mBitmapCache); 
-			if (null!=job.url && job.url.equals(wasPreviouslyLoading)) {
-				if (DEBUG_CACHE) LogManager.logger.v(LOG_TAG, job.mDisplayHandler+" no need to draw anything");
-				// TODO if the old job is different than the new one, we need to go ahead and do the new one
-				return; // no need to do anything the image is the same or downloading for it
-			}
-
-			if (TextUtils.isEmpty(job.url)) {
-				LogManager.logger.i(LOG_TAG, "no URL specified/known for "+job.key+" using default");
-				cancelPictureJob(job);
-				job.mDisplayHandler.drawDefaultPicture(null, mBitmapCache);
-				return;
+		if (DEBUG_CACHE) LogManager.logger.d(LOG_TAG, "getting picture "+job.url+" into "+job.mDisplayHandler+" key:"+job.key);
+		final long now = System.currentTimeMillis();
+		if (mDataLock.tryLock()) {
+			// skipped if the cache is being modified, it will be done on a next call
+			try {
+				removeExpiredEntries(mExpirations.advance(now));
+			} finally {
+				mDataLock.unlock();
 			}
-
-			if (wasPreviouslyLoading!=null) {
-				// cancel the loading of the previous URL for this loader
-				mJobManager.removeDownloadTarget(job, wasPreviouslyLoading);
+		}
+		CacheItem v = getIndexed(job.key);
+		final boolean expired = null!=v && v.isExpired(now);
+		// an expired item that can be revalidated is displayed while the server tells if it changed
+		final boolean revalidate = expired && v.hasValidators();
+		if (expired && !revalidate) {
+			// the timer wheel has not reached it yet, treat it as a miss
+			mDataLock.lock();
+			try {
+				removeExpiredEntries(Collections.singletonList(job.key));
+			} finally {
+				mDataLock.unlock();
 			}
+			v = null;
+		}
+		if (null!=mAdmissionFilter)
+			mAdmissionFilter.increment(job.key);
 
-			/*if (URL.startsWith("android.resource://")) {
-			URL = URL.substring(19);
-			int resId = Integer.valueOf(URL.substring(URL.indexOf('/')+1));
-			target.setImageResource(resId);
+		if (TextUtils.isEmpty(job.url) && null!=v) {
+			// get the URL matching the UUID if we don't have one set
+			job = job.cloneBuilder().setURL(v.URL).build();
+			//LogManager.logger.i("no URL specified for "+key+" using "+URL);
+		}
+		
+		//LogManager.logger.v(TAG, "load "+URL+" in "+target+" key:"+key);
+		String wasPreviouslyLoading = job.mConcurrencyHandler.setLoadingURL(job.url, mBitmapCache); 
+		if (null!=job.url && job.url.equals(wasPreviouslyLoading)) {
+			if (DEBUG_CACHE) LogManager.logger.v(LOG_TAG, job.mDisplayHandler+" no need to draw anything");
+			// TODO if the old job is different than the new one, we need to go ahead and do the new one
+			return; // no need to do anything the image is the same or downloading for it
+		}
+
+		if (TextUtils.isEmpty(job.url)) {
+			LogManager.logger.i(LOG_TAG, "no URL specified/known for "+job.key+" using default");
+			cancelPictureJob(job);
+			job.mDisplayHandler.drawDefaultPicture(null, mBitmapCache);
 			return;
-		}*/
+		}
 
-			//if (URL!=null && !URL.contains("/profile_images/"))
-			if (v != null) {
-				if (DEBUG_CACHE) LogManager.logger.v(LOG_TAG, job.key+" found cache item "+v+" URL:"+job.url);
-				try {
-					if (job.url != null && !job.url.equals(v.URL)) {
-						// the URL for the cached item changed
-						if (DEBUG_CACHE) LogManager.logger.v(LOG_TAG, job.key+" changed from "+v.URL+" to "+job.url+" remoteDate:"+v.remoteDate+" was "+job.mFreshDate);
-						if (v.remoteDate <= job.mFreshDate) { // '=' favor the newer url when dates are 0
-							// the item in the Cache is older than this request, the image changed for a newer one
-							// we need to mark the old one as short term with a UUID that has the picture ID inside
-							String deprecatedUUID = getOldPicUUID(job.key.UUID, v.URL);
-							CacheKey oldVersionKey;
-							if (!TextUtils.isEmpty(deprecatedUUID))
-								oldVersionKey = job.key.copyWithNewUuid(deprecatedUUID);
-							else
-								oldVersionKey = job.key.copyWithNewUrl(v.URL);
-							// move the current content to the deprecated key
-							moveCachedFiles(job.key, oldVersionKey, LifeSpan.SHORTTERM);
-							if (DEBUG_CACHE) LogManager.logger.v(LOG_TAG, job.key+" moved to "+oldVersionKey);
+		if (wasPreviouslyLoading!=null) {
+			// cancel the loading of the previous URL for this loader
+			mJobManager.removeDownloadTarget(job, wasPreviouslyLoading);
+		}
+
+		/*if (URL.startsWith("android.resource://")) {
+		URL = URL.substring(19);
+		int resId = Integer.valueOf(URL.substring(URL.indexOf('/')+1));
+		target.setImageResource(resId);
+		return;
+	}*/
+
+		//if (URL!=null && !URL.contains("/profile_images/"))
+		if (v != null) {
+			if (DEBUG_CACHE) LogManager.logger.v(LOG_TAG, job.key+" found cache item "+v+" URL:"+job.url);
+			try {
+				if (job.url != null && !job.url.equals(v.URL)) {
+					// the URL for the cached item changed
+					if (DEBUG_CACHE) LogManager.logger.v(LOG_TAG, job.key+" changed from "+v.URL+" to "+job.url+" remoteDate:"+v.remoteDate+" was "+job.mFreshDate);
+					if (v.remoteDate <= job.mFreshDate) { // '=' favor the newer url when dates are 0
+						// the item in the Cache is older than this request, the image changed for a newer one
+						// we need to mark the old one as short term with a UUID that has the picture ID inside
+						String deprecatedUUID = getOldPicUUID(job.key.UUID, v.URL);
+						CacheKey oldVersionKey;
+						if (!TextUtils.isEmpty(deprecatedUUID))
+							oldVersionKey = job.key.copyWithNewUuid(deprecatedUUID);
+						else
+							oldVersionKey = job.key.copyWithNewUrl(v.URL);
+						// move the current content to the deprecated key
+						moveCachedFiles(job.key, oldVersionKey, LifeSpan.SHORTTERM);
+						if (DEBUG_CACHE) LogManager.logger.v(LOG_TAG, job.key+" moved to "+oldVersionKey);
+					} else {
+						// use the old image from the cache with that URL
+						String dstUUID = getOldPicUUID(job.key.UUID, job.url);
+						final CacheKey newKey;
+						if (!TextUtils.isEmpty(dstUUID)) {
+							newKey = job.key.copyWithNewUuid(dstUUID);
 						} else {
-							// use the old image from the cache with that URL
-							String dstUUID = getOldPicUUID(job.key.UUID, job.url);
-							final CacheKey newKey;
-							if (!TextUtils.isEmpty(dstUUID)) {
-								newKey = job.key.copyWithNewUuid(dstUUID);
-							} else {
-								newKey = job.key.copyWithNewUrl(job.url);
-							}
-							job = job.cloneBuilder().forceCacheKey(newKey).build();
-							if (DEBUG_CACHE) LogManager.logger.v(LOG_TAG, job.key+" will be used for that old version");
+							newKey = job.key.copyWithNewUrl(job.url);
 						}
+						job = job.cloneBuilder().forceCacheKey(newKey).build();
+						if (DEBUG_CACHE) LogManager.logger.v(LOG_TAG, job.key+" will be used for that old version");
 					}
-				} catch (SecurityException e) {
-					LogManager.logger.e(LOG_TAG, "getPicture exception:" + e.getMessage(), e);
-				} catch (OutOfMemoryError e) {
-					LogManager.logger.w(LOG_TAG, "Could not decode image " + job.url, e);
-					ooHandler.onOutOfMemoryError(e);
 				}
+			} catch (SecurityException e) {
+				LogManager.logger.e(LOG_TAG, "getPicture exception:" + e.getMessage(), e);
+			} catch (OutOfMemoryError e) {
+				LogManager.logger.w(LOG_TAG, "Could not decode image " + job.url, e);
+				ooHandler.onOutOfMemoryError(e);
 			}
-			//else LogManager.logger.i(key.toString()+" not found in "+mData.size()+" cache elements");
-
-			final String bitmapCacheKey = mBitmapCache!=null ? PictureJobList.keyToBitmapCacheKey(job, job.url) : null;
-			if (mBitmapCache!=null) {
-				BitmapDrawable cachedBmp = mBitmapCache.get(bitmapCacheKey);
-				if (cachedBmp!=null) {
-					Bitmap bmp = cachedBmp.getBitmap();
-					if (bmp!=null) {
-						if (null!=job.getDisplayTransform()) {
-							Bitmap newBmp = job.getDisplayTransform().transformBitmap(bmp);
-							if (newBmp!=bmp)
-								cachedBmp = new BitmapDrawable(mContext.getResources(), bmp);
-						}
-						if (DEBUG_CACHE) LogManager.logger.d(LOG_TAG, "using cached bitmap for URL "+job.url+" key:"+bitmapCacheKey);
-						job.mDisplayHandler.drawBitmap(cachedBmp, job.url, job.drawCookie, mBitmapCache, true);
-						return;
+		}
+		//else LogManager.logger.i(key.toString()+" not found in "+mData.size()+" cache elements");
+
+		final String bitmapCacheKey = mBitmapCache!=null ? PictureJobList.keyToBitmapCacheKey(job, job.url) : null;
+		if (expired && !revalidate && mBitmapCache!=null)
+			mBitmapCache.remove(bitmapCacheKey);
+		if (mBitmapCache!=null) {
+			BitmapDrawable cachedBmp = mBitmapCache.get(bitmapCacheKey);
+			if (cachedBmp!=null) {
+				Bitmap bmp = cachedBmp.getBitmap();
+				if (bmp!=null) {
+					if (null!=job.getDisplayTransform()) {
+						Bitmap newBmp = job.getDisplayTransform().transformBitmap(bmp);
+						if (newBmp!=bmp)
+							cachedBmp = new BitmapDrawable(mContext.getResources(), bmp);
 					}
-					LogManager.logger.w(LOG_TAG, "try to draw bitmap "+job.key+" already recycled in "+job.mDisplayHandler+" URL:"+job.url);
+					if (DEBUG_CACHE) LogManager.logger.d(LOG_TAG, "using cached bitmap for URL "+job.url+" key:"+bitmapCacheKey);
+					touchItem(job.key);
+					job.mDisplayHandler.drawBitmap(cachedBmp, job.url, job.drawCookie, mBitmapCache, true);
+					if (revalidate)
+						mJobManager.addRevalidateTarget(job);
+					return;
 				}
+				LogManager.logger.w(LOG_TAG, "try to draw bitmap "+job.key+" already recycled in "+job.mDisplayHandler+" URL:"+job.url);
 			}
+		}
 
-			File file = getCachedFile(job.key);
-			if (file!=null) {
-				if (!file.exists() || !file.isFile()) {
-					LogManager.logger.w(LOG_TAG, "File "+file+" disappeared for "+job.key);
-					remove(job.key);
-				}
-				else if (job.mConcurrencyHandler.canDirectLoad(file)) {
-					try {
-						if (mBitmapCache!=null) {
-							if (!UIHandler.isUIThread()) {
-								BitmapDrawable cachedBmp = mBitmapCache.put(bitmapCacheKey, file);
-								if (cachedBmp!=null) {
-									Bitmap bmp = cachedBmp.getBitmap();
-									if (bmp!=null) {
-										if (null!=job.getDisplayTransform()) {
-											Bitmap newBmp = job.getDisplayTransform().transformBitmap(bmp);
-											if (newBmp!=bmp)
-												cachedBmp = new BitmapDrawable(mContext.getResources(), newBmp);
-										}
-										if (DEBUG_CACHE) LogManager.logger.d(LOG_TAG, "using direct file for URL "+job.url+" file:"+file);
-										job.mDisplayHandler.drawBitmap(cachedBmp, job.url, job.drawCookie, mBitmapCache, true);
-										return;
+		// the index is trusted, a missing or corrupt file is only detected when decoding it
+		final CacheItem cachedItem = getIndexed(job.key);
+		final File file = null==cachedItem ? null : cachedItem.path;
+		boolean decodeInBackground = false;
+		if (file!=null) {
+			if (!canDirectLoad(job.mConcurrencyHandler, file, cachedItem.fileSize))
+				decodeInBackground = true;
+			else {
+				try {
+					if (mBitmapCache!=null) {
+						if (UIHandler.isUIThread())
+							decodeInBackground = true;
+						else {
+							BitmapDrawable cachedBmp = mBitmapCache.put(bitmapCacheKey, file);
+							if (cachedBmp!=null) {
+								Bitmap bmp = cachedBmp.getBitmap();
+								if (bmp!=null) {
+									if (null!=job.getDisplayTransform()) {
+										Bitmap newBmp = job.getDisplayTransform().transformBitmap(bmp);
+										if (newBmp!=bmp)
+											cachedBmp = new BitmapDrawable(mContext.getResources(), newBmp);
 									}
+									if (DEBUG_CACHE) LogManager.logger.d(LOG_TAG, "using direct file for URL "+job.url+" file:"+file);
+									touchItem(job.key);
+									job.mDisplayHandler.drawBitmap(cachedBmp, job.url, job.drawCookie, mBitmapCache, true);
+									if (revalidate)
+										mJobManager.addRevalidateTarget(job);
+									return;
 								}
 							}
-						} else {
-							Bitmap bmp = BitmapFactory.decodeFile(file.getAbsolutePath());
-							if (bmp!=null) {
-								if (null!=job.getDisplayTransform())
-									bmp = job.getDisplayTransform().transformBitmap(bmp);
-
-								BitmapDrawable cachedBmp = new BitmapDrawable(mContext.getResources(), bmp);
-								if (DEBUG_CACHE) LogManager.logger.d(LOG_TAG, "using direct file for URL "+job.url+" file:"+file);
-								job.mDisplayHandler.drawBitmap(cachedBmp, job.url, job.drawCookie, mBitmapCache, true);
-								return;
-							}
+							invalidateCachedFile(job.key, file);
 						}
-					} catch (OutOfMemoryError e) {
-						job.mDisplayHandler.drawDefaultPicture(job.url, mBitmapCache);
-						LogManager.logger.w(LOG_TAG, "can't decode "+file,e);
-						ooHandler.onOutOfMemoryError(e);
-						return;
+					} else {
+						Bitmap bmp = BitmapFactory.decodeFile(file.getAbsolutePath());
+						if (bmp!=null) {
+							if (null!=job.getDisplayTransform())
+								bmp = job.getDisplayTransform().transformBitmap(bmp);
+
+							BitmapDrawable cachedBmp = new BitmapDrawable(mContext.getResources(), bmp);
+							if (DEBUG_CACHE) LogManager.logger.d(LOG_TAG, "using direct file for URL "+job.url+" file:"+file);
+							touchItem(job.key);
+							job.mDisplayHandler.drawBitmap(cachedBmp, job.url, job.drawCookie, mBitmapCache, true);
+							if (revalidate)
+								mJobManager.addRevalidateTarget(job);
+							return;
+						}
+						invalidateCachedFile(job.key, file);
 					}
+				} catch (OutOfMemoryError e) {
+					job.mDisplayHandler.drawDefaultPicture(job.url, mBitmapCache);
+					LogManager.logger.w(LOG_TAG, "can't decode "+file,e);
+					ooHandler.onOutOfMemoryError(e);
+					return;
 				}
 			}
+		}
+
+		if (!decodeInBackground && null==cachedItem && mFailedDownloads.isBackingOff(job.url, now)) {
+			// don't use the network for a URL that keeps failing, see retryFailedDownloads()
+			if (DEBUG_CACHE) LogManager.logger.d(LOG_TAG, "skip the failing URL "+job.url);
+			job.mDisplayHandler.drawErrorPicture(job.url, mBitmapCache);
+			return;
+		}
 
-			job.mDisplayHandler.drawDefaultPicture(job.url, mBitmapCache);
+		job.mDisplayHandler.drawDefaultPicture(job.url, mBitmapCache);
 
+		if (decodeInBackground)
+			// decode the cached file without waiting behind the network downloads
+			mJobManager.addDecodeTarget(job, revalidate);
+		else
 			// we could not read from the cache, load the URL
 			mJobManager.addDownloadTarget(job);
-		} finally {
-			mDataLock.unlock();
-		}
+	}
+
+	/**
+	 * @param handler
+	 * @param file the cached file to decode in the calling thread
+	 * @param fileSize size in bytes of the file as known by the cache, {@code 0} if unknown
+	 * @return {@code true} if the file can be decoded in the calling thread, without checking the file on the filesystem when the handler supports it
+	 */
+	private static boolean canDirectLoad(PictureJobConcurrency handler, File file, long fileSize) {
+		if (fileSize > 0 && handler instanceof PictureJobConcurrency.SizeAware)
+			return ((PictureJobConcurrency.SizeAware) handler).canDirectLoad(file, fileSize);
+		return handler.canDirectLoad(file);
+	}
+
+	/**
+	 * Record a hit on a cached item that was decoded outside of {@link #doPictureJob(PictureJob)}
+	 * @param key
+	 */
+	public void recordCacheHit(CacheKey key) {
+		touchItem(key);
 	}
 
 	/**
@@ -716,10 +1367,11 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 	@Override
 	protected void onDataCleared() {
 		super.onDataCleared();
+		clearIndexes();
 		try {
 			FileUtils.deleteDirectory(mCacheFolder);
-			synchronized (mDirAsserted) {
-				mDirAsserted = Boolean.FALSE;
+			synchronized (mDirAssertLock) {
+				mDirAsserted = false;
 			}
 			assertFolderExists();
 		} catch (SecurityException e) {
@@ -750,6 +1402,15 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 	}
 
 	private boolean moveCachedFiles(CacheKey srcKey, CacheKey dstKey, LifeSpan lifeSpan) {
+		mDataLock.lock();
+		try {
+			return moveCachedFilesLocked(srcKey, dstKey, lifeSpan);
+		} finally {
+			mDataLock.unlock();
+		}
+	}
+
+	private boolean moveCachedFilesLocked(CacheKey srcKey, CacheKey dstKey, LifeSpan lifeSpan) {
 		if (getMap().containsKey(dstKey)) {
 			LogManager.logger.d(LOG_TAG, "item "+dstKey+" already exists in the DB, can't copy "+srcKey);
 			return false;
@@ -788,14 +1449,20 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 		scheduleCustomOperation(new RemoveExpired());
 	}
 
-	public final void onNewBitmapLoaded(Map<CacheVariant,Drawable> newBitmaps, String url, long remoteDate, LifeSpan lifeSpan) {
+	public final void onNewBitmapLoaded(Map<CacheVariant,Drawable> newBitmaps, String url, long remoteDate, LifeSpan lifeSpan, long expirationDate, HttpCacheHeaders headers) {
 		// handle the storing and adding to the cache
 		// save the bitmap for later use
 		long fileSizeAdded = 0;
+		boolean writeFailed = false;
 		for (CacheVariant variant : newBitmaps.keySet()) {
+			File tmpFile = null;
 			try {
 				if (variant.path.exists())
 					variant.path.delete();
+				if (!isAdmitted(variant.key, lifeSpan)) {
+					if (DEBUG_CACHE) LogManager.logger.d(LOG_TAG, "not storing "+variant.key+" from "+url+", not requested enough");
+					continue;
+				}
 				Drawable drawable = newBitmaps.get(variant);
 				if (null==drawable) {
 					LogManager.logger.i(LOG_TAG, "tried to save a null drawable "+variant.key+" from "+url+" as "+variant.path);
@@ -807,23 +1474,39 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 					continue;
 				}
 				UIHandler.assertNotUIThread();
-				FileOutputStream fos = new FileOutputStream(variant.path, false);
+				// written aside and moved in place under the lock, so the deletion of an evicted file of the same key can't remove it
+				tmpFile = File.createTempFile(variant.path.getName(), ".tmp", variant.path.getParentFile());
+				FileOutputStream fos = new FileOutputStream(tmpFile, false);
 				bmp.compress(variant.key.getCompression(), variant.key.getCompRatio(), fos);
 				fos.close();
 
 				if (DEBUG_CACHE) LogManager.logger.d(LOG_TAG, "stored "+variant.key+" from "+url+" as "+variant.path); 
 
+				final long fileSize = tmpFile.length();
 				mDataLock.lock();
 				try {
+					if (!tmpFile.renameTo(variant.path))
+						throw new IOException("failed to move "+tmpFile+" to "+variant.path);
+					tmpFile = null;
 					CacheItem val = getMap().get(variant.key);
 					if (val != null) {
 						if (val.remoteDate < remoteDate)
 							val.remoteDate = remoteDate;
 
+						// the file was written again, its size may have changed
+						unindexItem(variant.key, val);
 						if (val.getLifeSpan().compare(lifeSpan) < 0)
 							val.setLifeSpan(lifeSpan);
-
+						val.fileSize = fileSize;
+						val.width = bmp.getWidth();
+						val.height = bmp.getHeight();
+						val.format = variant.key.getStorageFormat();
 						val.lastAccessDate = System.currentTimeMillis();
+						val.expirationDate = expirationDate;
+						val.validationDate = val.lastAccessDate;
+						val.eTag = null==headers ? null : headers.eTag;
+						val.lastModified = null==headers ? 0 : headers.lastModified;
+						indexItem(variant.key, val);
 						notifyItemChanged(variant.key);
 						/*if (!changed && url.equals(val.URL))
 							LogManager.logger.v(TAG, "image " + key.toString()+" unchanged");
@@ -834,11 +1517,19 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 						val.remoteDate = remoteDate;
 						val.setLifeSpan(lifeSpan);
 						val.lastAccessDate = System.currentTimeMillis();
+						val.fileSize = fileSize;
+						val.width = bmp.getWidth();
+						val.height = bmp.getHeight();
+						val.format = variant.key.getStorageFormat();
+						val.expirationDate = expirationDate;
+						val.validationDate = val.lastAccessDate;
+						val.eTag = null==headers ? null : headers.eTag;
+						val.lastModified = null==headers ? 0 : headers.lastModified;
 						//LogManager.logger.v(TAG, "adding image " + key.toString() +" type:"+type+" bmpIsNew:"+bmpIsNew+" rbmpIsNew:"+rbmpIsNew+" url:"+url);
 						put(variant.key, val);
 					}
 
-					fileSizeAdded += variant.path.length();
+					fileSizeAdded += fileSize;
 				} finally {
 					mDataLock.unlock();
 				}
@@ -846,50 +1537,199 @@ public abstract class PictureCache extends InMemoryHashmapDb<CacheKey,CacheItem>
 				//LogManager.logger.i("saved bmp to "+outFile.getAbsolutePath());
 			} catch (IOException e) {
 				LogManager.logger.i(LOG_TAG, "failed to save "+url+" as "+variant, e);
+				writeFailed = true;
+			} finally {
+				if (null!=tmpFile)
+					tmpFile.delete();
 			}
 		}
 
 		//LogManager.logger.i("BitmapLoaded outFile:"+outFile);
-		if (fileSizeAdded != 0) {
-			final boolean needsPurge;
-			if (lifeSpan == LifeSpan.LONGTERM)
-				needsPurge = (mPurgeCounterLongterm.incrementAndGet() > MIN_ADD_BEFORE_PURGE);
-			else if (lifeSpan == LifeSpan.SHORTTERM)
-				needsPurge = (mPurgeCounterShortterm.incrementAndGet() > MIN_ADD_BEFORE_PURGE);
-			else
-				needsPurge = false;
+		if (fileSizeAdded != 0 || writeFailed)
+			schedulePurgeIfNeeded(lifeSpan, fileSizeAdded, writeFailed);
+	}
+
+	/**
+	 * The server confirmed the expired items of that URL didn't change, they are valid again without loading them
+	 * @param keys the keys of the revalidated items
+	 * @param headers the headers of the {@code 304} response, may update the validators
+	 * @param expirationDate the new date after which the items are not valid, {@code 0} if the response didn't give one
+	 * and the items keep their previous freshness lifetime
+	 */
+	public void onNotModified(List<CacheKey> keys, HttpCacheHeaders headers, long expirationDate) {
+		final long now = System.currentTimeMillis();
+		mDataLock.lock();
+		try {
+			for (CacheKey key : keys) {
+				CacheItem val = getMap().get(key);
+				if (null==val)
+					continue;
+				unindexItem(key, val);
+				if (0!=expirationDate)
+					val.expirationDate = expirationDate;
+				else if (0!=val.expirationDate) {
+					// renew the lifetime the item had, an expired item must not become eternal
+					final long lifetime = 0==val.validationDate ? 0 : val.expirationDate - val.validationDate;
+					if (lifetime > 0)
+						val.expirationDate = now + lifetime;
+				}
+				val.validationDate = now;
+				if (null!=headers.eTag)
+					val.eTag = headers.eTag;
+				if (0!=headers.lastModified)
+					val.lastModified = headers.lastModified;
+				indexItem(key, val);
+				notifyItemChanged(key);
+			}
+		} finally {
+			mDataLock.unlock();
+		}
+	}
 
-			if (needsPurge) {
-				if (lifeSpan == LifeSpan.LONGTERM)
-					mPurgeCounterLongterm.set(0);
-				else if (lifeSpan == LifeSpan.SHORTTERM)
-					mPurgeCounterShortterm.set(0);
-				scheduleCustomOperation(new RemoveExpired(lifeSpan));
+	/**
+	 * Start a purge in the background if the {@link LifeSpan} reached its high watermark or the cache volume is running out of space
+	 * <p>Only one purge is scheduled at a time</p>
+	 * @param lifeSpan the {@link LifeSpan} that received new items, {@code null} for files written outside of the cache items
+	 * @param bytesAdded the amount of bytes written
+	 * @param checkSpace {@code true} to check the free space on the volume right away
+	 */
+	private void schedulePurgeIfNeeded(LifeSpan lifeSpan, long bytesAdded, boolean checkSpace) {
+		if (mBytesSinceSpaceCheck.addAndGet(bytesAdded) >= FREE_SPACE_CHECK_INTERVAL || checkSpace) {
+			mBytesSinceSpaceCheck.set(0);
+			final long freeSpace = getFreeSpace();
+			if (freeSpace >= 0 && freeSpace < MIN_FREE_SPACE) {
+				// purge ahead of the next writes, not just what's missing
+				final long bytesToFree = 2 * MIN_FREE_SPACE - freeSpace;
+				if (bytesToFree > mBytesToFree.get())
+					mBytesToFree.set(bytesToFree);
 			}
 		}
+
+		if ((mBytesToFree.get() != 0 || (null!=lifeSpan && RemoveExpired.needsPurge(this, lifeSpan))) && mPurgePending.compareAndSet(false, true)) {
+			scheduleCustomOperation(new AsynchronousDbOperation<MapEntry<CacheKey,CacheItem>>() {
+				@Override
+				public void runInMemoryDbOperation(AsynchronousDbHelper<MapEntry<CacheKey, CacheItem>> db) {
+					mPurgePending.set(false);
+					new RemoveExpired(mBytesToFree.getAndSet(0)).runInMemoryDbOperation(db);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Count the bytes downloaded in the temporary folder, including the partial downloads kept to be resumed, in the checks of the free space
+	 * @param bytesWritten the amount of bytes written
+	 */
+	public void onTempFileWritten(long bytesWritten) {
+		if (0!=bytesWritten)
+			schedulePurgeIfNeeded(null, bytesWritten, false);
+	}
+
+	/**
+	 * @return the space available on the cache volume in bytes, {@code -1} if it can't be read
+	 */
+	private long getFreeSpace() {
+		try {
+			StatFs stat = new StatFs(mCacheFolder.getAbsolutePath());
+			return (long) stat.getAvailableBlocks() * stat.getBlockSize();
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Check with the admission filter if a new item should be stored in the cache
+	 * @return {@code false} if the {@link LifeSpan} is full and the item is not requested more often than the item it would evict
+	 * @see RemoveExpired#needsPurge(PictureCache, LifeSpan) the {@link LifeSpan} is full when it needs a purge
+	 */
+	private boolean isAdmitted(CacheKey key, LifeSpan lifeSpan) {
+		if (null==mAdmissionFilter)
+			return true;
+		if (!RemoveExpired.needsPurge(this, lifeSpan))
+			return true;
+
+		mDataLock.lock();
+		try {
+			if (getMap().containsKey(key))
+				return true; // updating an existing item
+			Entry<CacheKey, CacheItem> victim = mEvictionPolicy.peekVictim(lifeSpan);
+			if (null==victim)
+				return true;
+			return mAdmissionFilter.frequency(key) > mAdmissionFilter.frequency(victim.getKey());
+		} finally {
+			mDataLock.unlock();
+		}
 	}
 
+	/**
+	 * Get the file stored for this {@code key}, the file is not checked on the filesystem
+	 * <p>if it turns out to be missing or corrupt when reading it, call {@link #invalidateCachedFile(CacheKey, File)}</p>
+	 * @param key
+	 * @return the file of the cached item or {@code null} if the item is not in the cache
+	 */
 	public File getCachedFile(CacheKey key) {
 		//if (URL!=null && !URL.contains("/profile_images/"))
 		//LogManager.logger.v(TAG, " getPicture URL:"+URL + " key:"+key);
 		if (key != null) {
-			mDataLock.lock();
-			try {
-				CacheItem v = getMap().get(key);
+			CacheItem v = getIndexed(key);
 
-				//if (URL!=null && !URL.contains("/profile_images/"))
-				if (DEBUG_CACHE) LogManager.logger.v(LOG_TAG, key+" found cache item "+v);
-				if (null!=v && null!=v.path && v.path.exists() && v.path.isFile()) {
-					return v.path;
-				}
-				//else LogManager.logger.i(key.toString()+" not found in "+mData.size()+" cache elements");
-			} finally {
-				mDataLock.unlock();
+			//if (URL!=null && !URL.contains("/profile_images/"))
+			if (DEBUG_CACHE) LogManager.logger.v(LOG_TAG, key+" found cache item "+v);
+			if (null!=v) {
+				return v.path;
 			}
+			//else LogManager.logger.i(key.toString()+" not found in "+mData.size()+" cache elements");
 		}
 		return null;
 	}
 
+	/**
+	 * Move the files of items removed from the cache to unique names, unless the same key was stored again in that file since
+	 * <p>new files are moved in place under the same lock by {@link #onNewBitmapLoaded(Map, String, long, LifeSpan, long, HttpCacheHeaders)},
+	 * the returned files can be deleted without the lock</p>
+	 * @param victims the removed items
+	 * @return the files to delete
+	 */
+	public List<File> takeEvictedFiles(List<Entry<CacheKey, CacheItem>> victims) {
+		final List<File> result = new ArrayList<File>(victims.size());
+		mDataLock.lock();
+		try {
+			for (Entry<CacheKey, CacheItem> victim : victims) {
+				final File file = victim.getValue().path;
+				if (null==file)
+					continue;
+				CacheItem current = getMap().get(victim.getKey());
+				if (null!=current && file.equals(current.path))
+					continue;
+				File evictedFile = new File(file.getPath()+'.'+sEvictedFileCount.incrementAndGet()+".evicted");
+				if (file.renameTo(evictedFile))
+					result.add(evictedFile);
+			}
+		} finally {
+			mDataLock.unlock();
+		}
+		return result;
+	}
+
+	/**
+	 * Remove the item from the cache after its file failed to be decoded, so it's loaded again
+	 * @param key
+	 * @param file the file returned by {@link #getCachedFile(CacheKey)} that could not be read
+	 */
+	public void invalidateCachedFile(CacheKey key, File file) {
+		mDataLock.lock();
+		try {
+			CacheItem v = getMap().get(key);
+			if (null!=v && file.equals(v.path)) {
+				LogManager.logger.w(LOG_TAG, "File "+file+" missing or corrupt for "+key);
+				remove(key);
+				file.delete();
+			}
+		} finally {
+			mDataLock.unlock();
+		}
+	}
+
 	@Override
 	protected void startLoadingFromCursor(Cursor c) {
 		try {
@@ -5,16 +5,26 @@ import java.security.NoSuchAlgorithmException;
 import android.text.TextUtils;
 
 import com.levelup.picturecache.internal.CacheKey;
+import com.levelup.picturecache.loaders.PrecacheImageLoader;
 import com.levelup.picturecache.transforms.bitmap.BitmapTransform;
 import com.levelup.picturecache.transforms.storage.StorageTransform;
 
 public class PictureJob implements PictureJobTransforms {
 
+	/** priority of the jobs that only fill the cache, see {@link PrecacheImageLoader} */
+	public static final int PRIORITY_PREFETCH = -10;
+	/** default priority of the jobs */
+	public static final int PRIORITY_NORMAL = 0;
+	/** priority of the jobs that should load before all the others */
+	public static final int PRIORITY_HIGH = 10;
+
 	public final String url;
 	public final String mUUID;
 	public final Object drawCookie;
 	public final long mFreshDate;
 	public final LifeSpan mLifeSpan;
+	public final long mTimeToLive;
+	public final int mPriority;
 	public final int mDimension;
 	public final boolean mWidthBased;
 	public final StorageType mExtensionMode;
@@ -22,6 +32,7 @@ public class PictureJob implements PictureJobTransforms {
 	public final PictureJobTransforms mTransformHandler;
 	public final PictureJobConcurrency mConcurrencyHandler;
 	public final NetworkLoader networkLoader;
+	public final RetryPolicy mRetryPolicy;
 	public final CacheKey key;
 
 	public static class Builder {
@@ -34,16 +45,20 @@ public class PictureJob implements PictureJobTransforms {
 		private Object drawCookie;
 		private long mFreshDate;
 		private LifeSpan mLifeSpan = LifeSpan.LONGTERM;
+		private long mTimeToLive;
+		private int mPriority;
 		private int mDimension;
 		private boolean mWidthBased;
 		private StorageType mExtensionMode = StorageType.AUTO;
 		private NetworkLoader networkLoader;
+		private RetryPolicy mRetryPolicy;
 		private CacheKey key;
 
 		public Builder(PictureJobRenderer draw, PictureJobConcurrency concurrencyHandler) {
 			if (null==concurrencyHandler) throw new IllegalArgumentException("missing a IPictureLoadConcurrency");
 			this.mDisplayHandler = draw;
 			this.mConcurrencyHandler = concurrencyHandler;
+			this.mPriority = draw instanceof PrecacheImageLoader ? PRIORITY_PREFETCH : PRIORITY_NORMAL;
 		}
 
 		public Builder setURL(String URL) {
@@ -71,6 +86,27 @@ public class PictureJob implements PictureJobTransforms {
 			return this;
 		}
 
+		/**
+		 * set for how long the stored item is valid, after that it's removed from the cache and loaded again if needed
+		 * @param timeToLive duration in milliseconds, {@code 0} for no expiration (the default)
+		 * @return the {@link PictureJob} being created
+		 */
+		public Builder setTimeToLive(long timeToLive) {
+			if (timeToLive < 0) throw new IllegalArgumentException("invalid time to live "+timeToLive);
+			mTimeToLive = timeToLive;
+			return this;
+		}
+
+		/**
+		 * set the priority of the download compared to the other jobs, the most recent job goes first for the same priority
+		 * @param priority a higher value is downloaded first, {@link PictureJob#PRIORITY_NORMAL} by default or {@link PictureJob#PRIORITY_PREFETCH} for a {@link PrecacheImageLoader}
+		 * @return the {@link PictureJob} being created
+		 */
+		public Builder setPriority(int priority) {
+			mPriority = priority;
+			return this;
+		}
+
 		public Builder setFreshDate(long date) {
 			mFreshDate = date;
 			return this;
@@ -97,6 +133,16 @@ public class PictureJob implements PictureJobTransforms {
 			return this;
 		}
 
+		/**
+		 * set how a failed download is tried again
+		 * @param retryPolicy {@code null} to use the {@link PictureCache#getRetryPolicy()} (the default)
+		 * @return the {@link PictureJob} being created
+		 */
+		public Builder setRetryPolicy(RetryPolicy retryPolicy) {
+			mRetryPolicy = retryPolicy;
+			return this;
+		}
+
 		Builder forceCacheKey(CacheKey key) {
 			this.key = key;
 			return this;
@@ -121,10 +167,13 @@ public class PictureJob implements PictureJobTransforms {
 		this.drawCookie = builder.drawCookie;
 		this.mFreshDate = builder.mFreshDate;
 		this.mLifeSpan = builder.mLifeSpan;
+		this.mTimeToLive = builder.mTimeToLive;
+		this.mPriority = builder.mPriority;
 		this.mDimension = builder.mDimension;
 		this.mWidthBased = builder.mWidthBased;
 		this.mExtensionMode = builder.mExtensionMode;
 		this.networkLoader = builder.networkLoader;
+		this.mRetryPolicy = builder.mRetryPolicy;
 		if (null!=builder.key)
 			this.key = builder.key;
 		else
@@ -140,10 +189,13 @@ public class PictureJob implements PictureJobTransforms {
 		builder.drawCookie = this.drawCookie;
 		builder.mFreshDate = this.mFreshDate;
 		builder.mLifeSpan = this.mLifeSpan;
+		builder.mTimeToLive = this.mTimeToLive;
+		builder.mPriority = this.mPriority;
 		builder.mDimension = this.mDimension;
 		builder.mWidthBased = this.mWidthBased;
 		builder.mExtensionMode = this.mExtensionMode;
 		builder.networkLoader = this.networkLoader;
+		builder.mRetryPolicy = this.mRetryPolicy;
 		return builder;
 	}
 
@@ -207,4 +259,4 @@ public class PictureJob implements PictureJobTransforms {
 	public BitmapTransform getDisplayTransform() {
 		return null==mTransformHandler ? null : mTransformHandler.getDisplayTransform();
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
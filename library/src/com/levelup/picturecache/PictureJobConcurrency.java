@@ -23,4 +23,17 @@ public interface PictureJobConcurrency {
 	 */
 	boolean canDirectLoad(File file);
 
+	/**
+	 * Optional interface for a {@link PictureJobConcurrency} that decides with the file size known by the cache, without checking the file on the filesystem
+	 */
+	interface SizeAware {
+		/**
+		 * @param file File that we are trying to decode in the calling thread
+		 * @param fileSize size in bytes of the file as known by the cache
+		 * @return {@code true} if the file can be decoded
+		 * @see PictureJobConcurrency#canDirectLoad(File)
+		 */
+		boolean canDirectLoad(File file, long fileSize);
+	}
+
 }
@@ -0,0 +1,71 @@
+package com.levelup.picturecache;
+
+import java.util.Random;
+
+/**
+ * Decide if a failed download is tried again and after how long
+ * <p>The delay doubles with each retry, a random part is added so the pictures that failed together are not all downloaded at the same time</p>
+ * @see PictureCache#setRetryPolicy(RetryPolicy)
+ * @see PictureJob.Builder#setRetryPolicy(RetryPolicy)
+ */
+public class RetryPolicy {
+
+	/** never try a failed download again */
+	public static final RetryPolicy NO_RETRY = new RetryPolicy(0, 0, 0);
+	/** try a download that failed on the network twice more, after ~1s and ~2s */
+	public static final RetryPolicy DEFAULT = new RetryPolicy(2, 1000, 10000);
+
+	private static final Random sRandom = new Random();
+
+	private final int mMaxRetries;
+	private final long mInitialDelay;
+	private final long mMaxDelay;
+
+	/**
+	 * @param maxRetries number of times a failed download is tried again
+	 * @param initialDelay delay before the first retry in milliseconds
+	 * @param maxDelay longest delay between two retries in milliseconds
+	 */
+	public RetryPolicy(int maxRetries, long initialDelay, long maxDelay) {
+		if (maxRetries < 0) throw new IllegalArgumentException("invalid number of retries "+maxRetries);
+		if (initialDelay < 0 || maxDelay < initialDelay) throw new IllegalArgumentException("invalid delays "+initialDelay+"/"+maxDelay);
+		this.mMaxRetries = maxRetries;
+		this.mInitialDelay = initialDelay;
+		this.mMaxDelay = maxDelay;
+	}
+
+	/**
+	 * @param failureClass the kind of failure, {@code null} if it's unknown
+	 * @param retries number of times the download was already tried again
+	 * @return {@code true} if the download should be tried again
+	 */
+	public boolean shouldRetry(FailureClass failureClass, int retries) {
+		return retries < mMaxRetries && isRetryable(failureClass);
+	}
+
+	/**
+	 * @param failureClass the kind of failure, {@code null} if it's unknown
+	 * @return {@code true} if the failure may not happen again, by default only the network errors, a missing content or host is fatal
+	 */
+	protected boolean isRetryable(FailureClass failureClass) {
+		return FailureClass.NETWORK==failureClass;
+	}
+
+	/**
+	 * @param retries number of times the download was already tried again
+	 * @return the delay before the next try in milliseconds, between half and all of the exponential delay
+	 */
+	public long getRetryDelay(int retries) {
+		long delay = mInitialDelay;
+		for (int i=0; i<retries && delay < mMaxDelay; ++i)
+			delay <<= 1;
+		delay = Math.min(delay, mMaxDelay);
+		final long halfDelay = delay >> 1;
+		return halfDelay + (long) (sRandom.nextDouble() * (delay - halfDelay));
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy:"+mMaxRetries+'/'+mInitialDelay+'/'+mMaxDelay;
+	}
+}
@@ -6,8 +6,14 @@ package com.levelup.picturecache.internal;
 import java.io.File;
 
 import com.levelup.picturecache.LifeSpan;
+import com.levelup.picturecache.StorageType;
 
 
+/**
+ * Item of the cache stored in the database
+ * <p>The items are read without a lock and modified in place under the cache lock, the mutable fields are volatile so the
+ * readers never see a torn or outdated value</p>
+ */
 public class CacheItem {
 	/**
 	 * the path in the cache directory
@@ -20,21 +26,65 @@ public class CacheItem {
 	/**
 	 *  the storage life span of URL see {@link LifeSpan}
 	 */
-	private LifeSpan lifeSpan;
+	private volatile LifeSpan lifeSpan;
 	/**
 	 * the last logical item date using to the cache item (if applicable)
 	 */
-	public long remoteDate;
+	public volatile long remoteDate;
 	/**
 	 * the date of last access to the item
 	 */
-	public long lastAccessDate;
+	public volatile long lastAccessDate;
+	/**
+	 * the size in bytes of the file at {@link #path}, kept to avoid hitting the filesystem for size accounting
+	 */
+	public volatile long fileSize;
+	/**
+	 * the date after which the item is not valid anymore, {@code 0} if it never expires
+	 */
+	public volatile long expirationDate;
+	/**
+	 * the date the file was last confirmed by the server, {@code 0} if unknown
+	 * <p>used with {@link #expirationDate} to renew the same freshness lifetime when the server doesn't send one</p>
+	 */
+	public volatile long validationDate;
+	/**
+	 * the dimensions in pixels of the stored bitmap, {@code 0} if unknown
+	 */
+	public volatile int width, height;
+	/**
+	 * the encoding of the file at {@link #path}, {@link StorageType#AUTO} if unknown
+	 */
+	public volatile StorageType format = StorageType.AUTO;
+	/**
+	 * the ETag of the HTTP response that created the file, {@code null} if there was none
+	 */
+	public volatile String eTag;
+	/**
+	 * the Last-Modified date of the HTTP response that created the file, {@code 0} if there was none
+	 */
+	public volatile long lastModified;
 	
 	public CacheItem(File path, String url) {
 		this.path = path;
 		this.URL = url;
 	}
 	
+	/**
+	 * @return {@code true} if the item can be refreshed with a conditional request once it's expired
+	 */
+	public final boolean hasValidators() {
+		return null!=eTag || 0!=lastModified;
+	}
+
+	/**
+	 * @param now the current date in milliseconds
+	 * @return {@code true} if the item is past its {@link #expirationDate}
+	 */
+	public final boolean isExpired(long now) {
+		return 0!=expirationDate && expirationDate <= now;
+	}
+
 	public final LifeSpan getLifeSpan() {
 		return lifeSpan;
 	}
@@ -45,7 +95,7 @@ public class CacheItem {
 
 	@Override
 	public String toString() {
-		return lifeSpan+":"+URL+":"+path.length()+":"+path;
+		return lifeSpan+":"+URL+":"+fileSize+":"+path;
 	}
 	
 	public final CacheItem copyWithNewPath(File dst) {
@@ -53,6 +103,14 @@ public class CacheItem {
 		copy.lifeSpan = lifeSpan;
 		copy.remoteDate = remoteDate;
 		copy.lastAccessDate = lastAccessDate;
+		copy.fileSize = fileSize;
+		copy.expirationDate = expirationDate;
+		copy.validationDate = validationDate;
+		copy.width = width;
+		copy.height = height;
+		copy.format = format;
+		copy.eTag = eTag;
+		copy.lastModified = lastModified;
 		return copy;
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -130,6 +130,13 @@ public class CacheKey {
 		return isJPEG() ? Bitmap.CompressFormat.JPEG : Bitmap.CompressFormat.PNG;
 	}
 
+	/**
+	 * @return the format used to store the file, {@link StorageType#JPEG} or {@link StorageType#PNG}
+	 */
+	public final StorageType getStorageFormat() {
+		return isJPEG() ? StorageType.JPEG : StorageType.PNG;
+	}
+
 	public final int getCompRatio() {
 		return isJPEG() ? 92 : 100;
 	}
@@ -147,4 +154,4 @@ public class CacheKey {
 	public final String serialize() {
 		return UUID+":"+dimension+":"+(widthBased?"w":"h")+":"+extensionMode.toStorage()+":"+(variantString==null?"":variantString);
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,116 @@
+package com.levelup.picturecache.internal;
+
+import java.io.File;
+
+import uk.co.senab.bitmapcache.BitmapLruCache;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+
+import com.levelup.picturecache.LogManager;
+import com.levelup.picturecache.PictureCache;
+import com.levelup.picturecache.PictureJob;
+import com.levelup.picturecache.UIHandler;
+
+/**
+ * Decode a picture already in the cache for a {@link PictureJob} that could not decode it in the calling thread
+ * <p>The decoded picture is drawn in the UI thread. If the file turns out to be missing, corrupt or can't be decoded the job is sent to the network downloads</p>
+ */
+class DecodeJob implements Runnable {
+
+	final PictureJob job;
+	private final PictureCache mCache;
+	private final DownloadManager mMonitor;
+	/** the file is expired, once displayed it's revalidated in the background */
+	private final boolean mRevalidate;
+	private volatile boolean mCancelled;
+
+	DecodeJob(PictureJob job, PictureCache cache, DownloadManager monitor, boolean revalidate) {
+		this.job = job;
+		this.mCache = cache;
+		this.mMonitor = monitor;
+		this.mRevalidate = revalidate;
+	}
+
+	/**
+	 * The target doesn't want this picture anymore, don't decode or display it
+	 */
+	void cancel() {
+		mCancelled = true;
+	}
+
+	@Override
+	public void run() {
+		try {
+			if (!mCancelled)
+				decode();
+		} finally {
+			mMonitor.onDecodeFinished(this);
+		}
+	}
+
+	private void decode() {
+		final File file = mCache.getCachedFile(job.key);
+		if (null==file) {
+			// removed since the job was queued
+			mMonitor.addDownloadTarget(job);
+			return;
+		}
+
+		final BitmapLruCache bitmapCache = mCache.getBitmapCache();
+		try {
+			Bitmap bmp = null;
+			if (null!=bitmapCache) {
+				BitmapDrawable cachedBmp = bitmapCache.put(PictureJobList.keyToBitmapCacheKey(job, job.url), file);
+				if (null!=cachedBmp)
+					bmp = cachedBmp.getBitmap();
+			} else {
+				bmp = BitmapFactory.decodeFile(file.getAbsolutePath());
+			}
+
+			if (null==bmp) {
+				mCache.invalidateCachedFile(job.key, file);
+				mMonitor.addDownloadTarget(job);
+				return;
+			}
+
+			if (mCancelled)
+				return;
+
+			if (null!=job.getDisplayTransform())
+				bmp = job.getDisplayTransform().transformBitmap(bmp);
+
+			mCache.recordCacheHit(job.key);
+			final BitmapDrawable drawable = new BitmapDrawable(mCache.getContext().getResources(), bmp);
+			UIHandler.instance.runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					if (!mCancelled)
+						job.mDisplayHandler.drawBitmap(drawable, job.url, job.drawCookie, bitmapCache, false);
+				}
+			});
+			if (mRevalidate)
+				// after the stale draw is posted so it's never drawn over the new version
+				mMonitor.addRevalidateTarget(job);
+		} catch (OutOfMemoryError e) {
+			LogManager.getLogger().w(PictureCache.LOG_TAG, "can't decode "+file, e);
+			mCache.getOutOfMemoryHandler().onOutOfMemoryError(e);
+			UIHandler.instance.runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					if (!mCancelled)
+						job.mDisplayHandler.drawErrorPicture(job.url, bitmapCache);
+				}
+			});
+		} catch (RuntimeException e) {
+			LogManager.getLogger().w(PictureCache.LOG_TAG, "failed to decode "+file+", download it", e);
+			if (!mCancelled)
+				mMonitor.addDownloadTarget(job);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DecodeJob:"+job.key+"@"+super.hashCode();
+	}
+}
@@ -1,14 +1,25 @@
 package com.levelup.picturecache.internal;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+
+import com.levelup.picturecache.FailureClass;
+
 public class DownloadFailureException extends RuntimeException {
 
 	private static final long serialVersionUID = -2721774521801388650L;
 
+	/** kind of failure when it can't be found from the cause, {@code null} to use the cause */
+	private final FailureClass mFailureClass;
+
 	/**
 	 * Constructs a new {@code DownloadFailureException} that includes the current stack
 	 * trace.
 	 */
 	public DownloadFailureException() {
+		mFailureClass = null;
 	}
 
 	/**
@@ -20,6 +31,7 @@ public class DownloadFailureException extends RuntimeException {
 	 */
 	public DownloadFailureException(String detailMessage) {
 		super(detailMessage);
+		mFailureClass = null;
 	}
 
 	/**
@@ -31,6 +43,7 @@ public class DownloadFailureException extends RuntimeException {
 	 */
 	public DownloadFailureException(Throwable throwable) {
 		super(throwable);
+		mFailureClass = null;
 	}
 
 	/**
@@ -44,6 +57,39 @@ public class DownloadFailureException extends RuntimeException {
 	 */
 	public DownloadFailureException(String detailMessage, Throwable throwable) {
 		super(detailMessage, throwable);
+		mFailureClass = null;
+	}
+
+	/**
+	 * Constructs a new {@code DownloadFailureException} with the current stack trace,
+	 * the specified kind of failure, detail message and cause.
+	 *
+	 * @param failureClass
+	 *            the kind of failure, {@code null} to find it from the cause.
+	 * @param detailMessage
+	 *            the detail message for this exception.
+	 * @param throwable
+	 *            the cause of this exception.
+	 */
+	public DownloadFailureException(FailureClass failureClass, String detailMessage, Throwable throwable) {
+		super(detailMessage, throwable);
+		mFailureClass = failureClass;
+	}
+
+	/**
+	 * @return the kind of failure based on the cause of this exception, {@code null} if the failure doesn't come from the URL
+	 */
+	public FailureClass getFailureClass() {
+		if (null!=mFailureClass)
+			return mFailureClass;
+		final Throwable cause = getCause();
+		if (cause instanceof FileNotFoundException || cause instanceof MalformedURLException)
+			return FailureClass.NOT_FOUND;
+		if (cause instanceof UnknownHostException)
+			return FailureClass.UNKNOWN_HOST;
+		if (cause instanceof IOException)
+			return FailureClass.NETWORK;
+		return null;
 	}
 
 }
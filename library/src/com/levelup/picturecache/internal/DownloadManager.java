@@ -3,94 +3,332 @@
  */
 package com.levelup.picturecache.internal;
 
-import java.util.Enumeration;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Hashtable;
-import java.util.concurrent.BlockingQueue;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 
+import com.levelup.picturecache.LifeSpan;
 import com.levelup.picturecache.LogManager;
 import com.levelup.picturecache.PictureCache;
 import com.levelup.picturecache.PictureJob;
+import com.levelup.picturecache.UIHandler;
 
 public class DownloadManager {
 
 	private static final boolean DEBUG_DOWNLOADER = false;
 
-	private final static int THREAD_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+	private final static int CPU_COUNT = Runtime.getRuntime().availableProcessors();
 
-	private static final BlockingQueue<Runnable> sPoolWorkQueue = new LinkedBlockingQueue<Runnable>(20);
+	/** downloads mostly wait on the network, they can run on more threads than there are cores */
+	private final static int NETWORK_POOL_SIZE = Math.max(4, 2*CPU_COUNT);
+	/** default number of downloads from the same host at the same time, the other hosts can use the remaining threads */
+	public final static int DEFAULT_DOWNLOADS_PER_HOST = NETWORK_POOL_SIZE / 2;
+	/** decoding is CPU bound */
+	private final static int DECODE_POOL_SIZE = CPU_COUNT;
+	/** decoding the pictures already in the cache is CPU bound */
+	private final static int CACHE_DECODE_POOL_SIZE = CPU_COUNT;
+	private final static int DECODE_QUEUE_SIZE = 32;
+	/** encoding the variants of a picture is CPU bound, they are encoded in parallel */
+	private final static int STORE_POOL_SIZE = CPU_COUNT;
+	private final static int STORE_QUEUE_SIZE = 16;
 
-	private final ThreadPoolExecutor threadPool = new ThreadPoolExecutor(THREAD_POOL_SIZE, 2*THREAD_POOL_SIZE, 10, TimeUnit.SECONDS, sPoolWorkQueue) {
+	/**
+	 * Order of the {@link PictureJobList} waiting to be downloaded, the waiting lists are never dropped
+	 */
+	private final DownloadScheduler mScheduler = new DownloadScheduler(NETWORK_POOL_SIZE, DEFAULT_DOWNLOADS_PER_HOST);
+
+	/**
+	 * Network stage of the {@link PictureJobList}, run by at most {@link #NETWORK_POOL_SIZE} workers taking the lists from
+	 * the {@link #mScheduler}, once the file is downloaded the list is sent to {@link #decodePool}
+	 */
+	private final ThreadPoolExecutor threadPool = new ThreadPoolExecutor(NETWORK_POOL_SIZE, NETWORK_POOL_SIZE, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()) {
 		@Override
 		protected void beforeExecute(Thread t, Runnable r) {
 			super.beforeExecute(t, r);
-			if (r instanceof PictureJobList) {
-				t.setName("PictureDL-"+((PictureJobList) r).url.hashCode());
-			} else {
-				t.setName("PictureDL-"+t);
+			t.setName("PictureDL-"+t.getId());
+			t.setPriority(Thread.MIN_PRIORITY);
+		}
+	};
+
+	private final Runnable mDownloadWorker = new Runnable() {
+		@Override
+		public void run() {
+			PictureJobList jobList = mScheduler.next(null);
+			while (null!=jobList) {
+				try {
+					jobList.run();
+				} catch (Throwable e) {
+					LogManager.getLogger().w(PictureCache.LOG_TAG, "exception on "+jobList, e);
+				}
+				jobList = mScheduler.next(jobList);
 			}
+		}
+	};
+
+	/**
+	 * Decoding of the downloaded files, kept apart from the network downloads
+	 * <p>when its queue is full the network stage waits for room, it never decodes in a network thread</p>
+	 */
+	private final ThreadPoolExecutor decodePool = new ThreadPoolExecutor(DECODE_POOL_SIZE, DECODE_POOL_SIZE, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(DECODE_QUEUE_SIZE), new RejectedExecutionHandler() {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			try {
+				// the queue is only full when all the decoding threads are running
+				executor.getQueue().put(r);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+		}
+	}) {
+		@Override
+		protected void beforeExecute(Thread t, Runnable r) {
+			super.beforeExecute(t, r);
+			t.setName("PictureDecode-"+t.getId());
+			t.setPriority(Thread.NORM_PRIORITY - 1);
+		}
+	};
+
+	/**
+	 * Decoding of the pictures already in the cache that couldn't be decoded in the calling thread, they never wait behind
+	 * the downloads or go to the network because the queue is full
+	 */
+	private final ThreadPoolExecutor cacheDecodePool = new ThreadPoolExecutor(CACHE_DECODE_POOL_SIZE, CACHE_DECODE_POOL_SIZE, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()) {
+		@Override
+		protected void beforeExecute(Thread t, Runnable r) {
+			super.beforeExecute(t, r);
+			t.setName("PictureCacheDecode-"+t.getId());
+			t.setPriority(Thread.NORM_PRIORITY - 1);
+		}
+	};
+
+	/**
+	 * Encoding and writing of the new pictures in the cache, the download of other pictures doesn't wait for it
+	 */
+	private final ThreadPoolExecutor storePool = new ThreadPoolExecutor(STORE_POOL_SIZE, STORE_POOL_SIZE, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(STORE_QUEUE_SIZE)) {
+		@Override
+		protected void beforeExecute(Thread t, Runnable r) {
+			super.beforeExecute(t, r);
+			t.setName("PictureStore-"+t.getId());
 			t.setPriority(Thread.MIN_PRIORITY);
 		}
 	};
 
 	/** Running downloads per URL/joblist pair */
-	private final Hashtable<String, PictureJobList> mDownloadJobs = new Hashtable<String, PictureJobList>();
+	private final ConcurrentHashMap<String, PictureJobList> mDownloadJobs = new ConcurrentHashMap<String, PictureJobList>();
+	/** Running download of each job, to find it without going through all the downloads */
+	private final ConcurrentHashMap<PictureJob, PictureJobList> mJobDownloads = new ConcurrentHashMap<PictureJob, PictureJobList>();
+	/** Cached pictures waiting or being decoded in the {@link #cacheDecodePool} */
+	private final ConcurrentHashMap<PictureJob, DecodeJob> mDecodeJobs = new ConcurrentHashMap<PictureJob, DecodeJob>();
 	private final PictureCache mCache;
+	/** number of {@link PictureJobList} created */
+	private final AtomicLong mJobListCount = new AtomicLong();
 
 	public DownloadManager(PictureCache pictureCache) {
 		this.mCache = pictureCache;
 	}
 
 	public void addDownloadTarget(PictureJob job) {
+		addDownloadTarget(job, false);
+	}
+
+	/**
+	 * Revalidate the expired picture already displayed by the job in the background, the job is only drawn again if a new version is downloaded
+	 * @param job
+	 */
+	public void addRevalidateTarget(PictureJob job) {
+		addDownloadTarget(job, true);
+	}
+
+	private void addDownloadTarget(PictureJob job, boolean staleShown) {
 		// find out if that URL is already loading, if so add the view to the recipient
 		boolean isNewJobList = false;
 		PictureJobList jobList = null;
-		synchronized (mDownloadJobs) {
+		for (;;) {
 			// add job by URL
 			jobList = mDownloadJobs.get(job.url);
-			if (null==jobList) {
-				isNewJobList = true;
-				if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, "add new downloader for "+job.url+" key:"+job.key+" job:"+job+" downloads:"+mDownloadJobs);
-				// create a fresh new one if an old one is not ready to accept our loadHandler
-				jobList = new PictureJobList(job, mCache, this);
-				jobList.addJob(job);
-				mDownloadJobs.put(job.url, jobList);
-			} else {
-				boolean jobAdded;
-				synchronized (jobList) { // avoid the downloader from aborting while we're adding a job
-					if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, "add job:"+job+" to downloader:"+jobList);
-					jobAdded = jobList.addJob(job);
-				}
-				if (!jobAdded) {
-					if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, "add new downloader for "+job.url+" key:"+job.key+" job:"+job+" downloads:"+mDownloadJobs);
-					// create a fresh new one if an old one is not ready to accept our loadHandler
-					jobList = new PictureJobList(job, mCache, this);
-					jobList.addJob(job);
-					mDownloadJobs.put(job.url, jobList);
-					isNewJobList = true;
+			if (null!=jobList) {
+				if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, "add job:"+job+" to downloader:"+jobList);
+				if (jobList.addJob(job, staleShown)) {
+					// a higher priority job moves the list up in the download queue
+					mScheduler.raisePriority(jobList, job.mPriority);
+					break;
 				}
 			}
+
+			if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, "add new downloader for "+job.url+" key:"+job.key+" job:"+job+" downloads:"+mDownloadJobs);
+			// create a fresh new one if an old one is not ready to accept our loadHandler
+			PictureJobList newJobList = new PictureJobList(job, mCache, this, mJobListCount.incrementAndGet());
+			newJobList.addJob(job, staleShown);
+			if (null==jobList ? null==mDownloadJobs.putIfAbsent(job.url, newJobList) : mDownloadJobs.replace(job.url, jobList, newJobList)) {
+				jobList = newJobList;
+				isNewJobList = true;
+				break;
+			}
+			// another thread changed the download of that URL, try again with its list
 		}
 
+		PictureJobList previousList = mJobDownloads.put(job, jobList);
+		if (null!=previousList && previousList!=jobList && previousList.removeJob(job))
+			cancelIfUnused(previousList);
+
 		if (isNewJobList)
+			executeDownload(jobList);
+
+		if (DEBUG_DOWNLOADER) {
+			LogManager.getLogger().e(PictureCache.LOG_TAG, "downloader for "+job.url+" = "+jobList+" new task:"+isNewJobList);
+		}
+	}
+
+	private void executeDownload(PictureJobList jobList) {
+		if (mScheduler.add(jobList)) {
 			try {
-				threadPool.execute(jobList);
+				threadPool.execute(mDownloadWorker);
 			} catch (RejectedExecutionException e) {
 				LogManager.getLogger().w(PictureCache.LOG_TAG, "can't execute "+jobList, e);
+				mScheduler.onWorkerRejected();
+				if (mScheduler.remove(jobList)) {
+					jobList.onRejected();
+					onJobFinished(jobList);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set the maximum number of pictures downloaded at the same time from the same host
+	 * @param maxDownloads {@link #DEFAULT_DOWNLOADS_PER_HOST} by default
+	 */
+	public void setMaxDownloadsPerHost(int maxDownloads) {
+		mScheduler.setMaxPerHost(maxDownloads);
+	}
+
+	/**
+	 * @param host the host part of the URLs
+	 * @return the number of pictures waiting to be downloaded from this host
+	 */
+	public int getQueuedDownloads(String host) {
+		return mScheduler.getWaitingCount(host);
+	}
+
+	/**
+	 * @param host the host part of the URLs
+	 * @return the number of pictures being downloaded from this host
+	 */
+	public int getRunningDownloads(String host) {
+		return mScheduler.getRunningCount(host);
+	}
+
+	/**
+	 * Decode the cached file of the job in the background, if it can't be read the job is sent to {@link #addDownloadTarget(PictureJob)}
+	 * @param job
+	 */
+	public void addDecodeTarget(PictureJob job) {
+		addDecodeTarget(job, false);
+	}
+
+	/**
+	 * Decode the cached file of the job in the background, if it can't be read the job is sent to {@link #addDownloadTarget(PictureJob)}
+	 * @param job
+	 * @param revalidate {@code true} if the file is expired, it's displayed and revalidated with {@link #addRevalidateTarget(PictureJob)}
+	 */
+	public void addDecodeTarget(PictureJob job, boolean revalidate) {
+		DecodeJob decodeJob = new DecodeJob(job, mCache, this, revalidate);
+		DecodeJob oldJob = mDecodeJobs.put(job, decodeJob);
+		if (null!=oldJob)
+			oldJob.cancel();
+		try {
+			cacheDecodePool.execute(decodeJob);
+		} catch (RejectedExecutionException e) {
+			// the file is in the cache, it's decoded in the calling thread rather than downloaded again
+			LogManager.getLogger().w(PictureCache.LOG_TAG, "can't queue the decoding of "+job, e);
+			decodeJob.run();
+		}
+	}
+
+	void onDecodeFinished(DecodeJob decodeJob) {
+		mDecodeJobs.remove(decodeJob.job, decodeJob);
+	}
+
+	private void cancelDecode(PictureJob job) {
+		DecodeJob decodeJob = mDecodeJobs.remove(job);
+		if (null!=decodeJob) {
+			if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, "cancel decoding "+decodeJob);
+			decodeJob.cancel();
+			cacheDecodePool.remove(decodeJob);
+		}
+	}
+
+	/**
+	 * Stop the list if none of its targets need it anymore: a waiting list is removed from the queue and the download of
+	 * a running list is closed
+	 */
+	private void cancelIfUnused(PictureJobList downloader) {
+		if (!downloader.cancelIfUnused())
+			return;
+		if (mScheduler.remove(downloader)) {
+			if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, "cancel waiting "+downloader);
+			onJobFinished(downloader); // it never started, there is nothing to display
+		}
+	}
+
+	/**
+	 * Run the network stage of a {@link PictureJobList} again after a delay, it doesn't use a worker while it waits
+	 * <p>if none of its targets need it anymore by then it's finished without downloading</p>
+	 * @param jobList
+	 * @param delay delay before the next try in milliseconds
+	 */
+	void retryDownload(final PictureJobList jobList, long delay) {
+		UIHandler.instance.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				if (jobList.cancelIfUnused() || jobList.isAborting()) {
+					if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, "cancel retry of "+jobList);
+					onJobFinished(jobList);
+				} else
+					executeDownload(jobList);
 			}
+		}, delay);
+	}
 
-		if (DEBUG_DOWNLOADER) {
-			LogManager.getLogger().e(PictureCache.LOG_TAG, "downloader for "+job.url+" = "+jobList+" new task:"+isNewJobList);
+	/**
+	 * Run the decoding stage of a {@link PictureJobList} once its network stage is done
+	 * <p>when the decoding queue is full the calling network thread waits for room, slowing down the network stage</p>
+	 * @param jobList
+	 */
+	void onNetworkStageDone(PictureJobList jobList) {
+		try {
+			decodePool.execute(jobList);
+		} catch (RejectedExecutionException e) {
+			LogManager.getLogger().w(PictureCache.LOG_TAG, "can't decode "+jobList, e);
+			jobList.onRejected();
+			onJobFinished(jobList);
 		}
 	}
 
+	/**
+	 * Download the picture of a job again in a new {@link PictureJobList}, for a job the decoding stage of the finished list
+	 * could not serve without the network
+	 * @param jobList the list that couldn't serve the job
+	 * @param job
+	 */
+	void requeueDownloadTarget(PictureJobList jobList, PictureJob job) {
+		// the job may have been removed or moved to another download in the meantime
+		if (mJobDownloads.get(job)==jobList)
+			addDownloadTarget(job);
+	}
+
 	/**
 	 * has to be done before a new {@link PictureLoaderHandler.setLoadingNewURL(DownloadManager, String, SimpleLogger)}
 	 * @param job
@@ -99,43 +337,77 @@ public class DownloadManager {
 	public void removeDownloadTarget(PictureJob job, String URL) {
 		if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, "removeDownloadTarget for "+URL+" job:"+job);
 
-		synchronized (mDownloadJobs) {
-			if (!TextUtils.isEmpty(URL)) {
-				PictureJobList downloader = mDownloadJobs.get(URL);
-				if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, " removeDownloadTarget job:"+job+" found:"+downloader);
-				if (downloader!=null) {
-					//LogManager.getLogger().d(PictureCache.TAG, "cancelDownloadForTarget for URL " + URL+" for "+loader);
-					downloader.removeJob(job);
-				}
-				return;
-			}
+		cancelDecode(job);
 
-			// find the target by view
-			//LogManager.getLogger().w(PictureCache.TAG, "cancelDownloadForTarget by key " + loader);
-			Enumeration<PictureJobList> downloaders = mDownloadJobs.elements();
-			while (downloaders.hasMoreElements()) {
-				PictureJobList downloader = downloaders.nextElement();
-				if (downloader.removeJob(job)) {
-					if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, " removeDownloadTarget loadHandler:"+job+" deleted on:"+downloader/*+" url:"+url*/);
-					/*if (shouldFinish)
-						threadPool.remove(downloader);*/
-					return;
-				}
+		PictureJobList downloader = mJobDownloads.get(job);
+		if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, " removeDownloadTarget job:"+job+" found:"+downloader);
+		// with a URL only the download of that URL is cancelled
+		if (downloader!=null && (TextUtils.isEmpty(URL) || URL.equals(downloader.url)) && mJobDownloads.remove(job, downloader)) {
+			if (downloader.removeJob(job)) {
+				if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, " removeDownloadTarget loadHandler:"+job+" deleted on:"+downloader);
+				cancelIfUnused(downloader);
 			}
+			return;
 		}
 
 		if (DEBUG_DOWNLOADER) LogManager.getLogger().w(PictureCache.LOG_TAG, "removeDownloadTarget do nothing for loadHandler:"+job);
 	}
 
-	void onJobFinishedWithNewBitmaps(PictureJobList downloader, HashMap<CacheVariant,Drawable> newBitmaps) {
-		mCache.onNewBitmapLoaded(newBitmaps, downloader.url, downloader.getItemDate(), downloader.getLifeSpan());
+	void onJobFinishedWithNewBitmaps(final PictureJobList downloader, final HashMap<CacheVariant,Drawable> newBitmaps) {
+		if (newBitmaps.isEmpty()) {
+			onJobFinished(downloader);
+			return;
+		}
 
-		synchronized (mDownloadJobs) {
-			if (null != mDownloadJobs.remove(downloader.url)) {
-				if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, "Job Finishing for "+downloader.url + " remaining:"+mDownloadJobs);
-			} else {
-				LogManager.getLogger().w(PictureCache.LOG_TAG, "Unknown job finishing for "+downloader.url + " remaining:"+mDownloadJobs);
+		final HttpCacheHeaders responseHeaders = downloader.getResponseHeaders();
+		if (null!=responseHeaders && responseHeaders.noStore) {
+			// the server doesn't want the picture stored, the versions already in the cache are outdated
+			for (CacheVariant variant : newBitmaps.keySet()) {
+				CacheItem oldItem = mCache.get(variant.key);
+				if (null!=oldItem)
+					mCache.invalidateCachedFile(variant.key, oldItem.path);
 			}
+			onJobFinished(downloader);
+			return;
+		}
+
+		final long itemDate = downloader.getItemDate();
+		final LifeSpan lifeSpan = downloader.getLifeSpan();
+		final long expirationDate = downloader.getExpirationDate();
+		// the URL remains busy until all the files are written so they are not downloaded again
+		final AtomicInteger remainingVariants = new AtomicInteger(newBitmaps.size());
+		for (final Entry<CacheVariant, Drawable> newBitmap : newBitmaps.entrySet()) {
+			Runnable storeJob = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						mCache.onNewBitmapLoaded(Collections.singletonMap(newBitmap.getKey(), newBitmap.getValue()), downloader.url, itemDate, lifeSpan, expirationDate, responseHeaders);
+					} finally {
+						if (0==remainingVariants.decrementAndGet())
+							onJobFinished(downloader);
+					}
+				}
+			};
+			try {
+				storePool.execute(storeJob);
+			} catch (RejectedExecutionException e) {
+				if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, "store queue full, store "+newBitmap.getKey()+" in the decoding thread");
+				storeJob.run();
+			}
+		}
+	}
+
+	private void onJobFinished(PictureJobList downloader) {
+		for (PictureJob job : downloader.getJobs())
+			mJobDownloads.remove(job, downloader);
+
+		if (mDownloadJobs.remove(downloader.url, downloader)) {
+			if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, "Job Finishing for "+downloader.url + " remaining:"+mDownloadJobs);
+		} else if (mDownloadJobs.containsKey(downloader.url)) {
+			// a cancelled list was replaced by a new one for the same URL
+			if (DEBUG_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, "Replaced job finishing for "+downloader.url + " remaining:"+mDownloadJobs);
+		} else {
+			LogManager.getLogger().w(PictureCache.LOG_TAG, "Unknown job finishing for "+downloader.url + " remaining:"+mDownloadJobs);
 		}
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,203 @@
+package com.levelup.picturecache.internal;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Order in which the {@link PictureJobList} are downloaded
+ * <p>
+ * Each host has its queue of lists, ordered by priority then the most recent first, and a limited number of downloads
+ * running at the same time. The next download is the one with the highest priority among the hosts below their limit,
+ * hosts with the same priority take turns so a slow host with many pictures doesn't hold all the workers.
+ */
+class DownloadScheduler {
+
+	private static final Comparator<PictureJobList> DOWNLOAD_ORDER = new Comparator<PictureJobList>() {
+		@Override
+		public int compare(PictureJobList lhs, PictureJobList rhs) {
+			int lPriority = lhs.getPriority();
+			int rPriority = rhs.getPriority();
+			if (lPriority != rPriority)
+				return lPriority > rPriority ? -1 : 1;
+			if (lhs.sequence != rhs.sequence)
+				return lhs.sequence > rhs.sequence ? -1 : 1;
+			return 0;
+		}
+	};
+
+	private static final class HostQueue {
+		final String host;
+		final PriorityQueue<PictureJobList> waiting = new PriorityQueue<PictureJobList>(11, DOWNLOAD_ORDER);
+		int running;
+
+		HostQueue(String host) {
+			this.host = host;
+		}
+	}
+
+	/** hosts with lists waiting or running */
+	private final HashMap<String, HostQueue> mHosts = new HashMap<String, HostQueue>();
+	/** hosts with lists waiting, in the order they take turns */
+	private final ArrayList<HostQueue> mWaitingHosts = new ArrayList<HostQueue>();
+	/** index in {@link #mWaitingHosts} of the host whose turn is next */
+	private int mNextHost;
+	private final int mMaxWorkers;
+	private int mWorkers;
+	private int mMaxPerHost;
+
+	/**
+	 * @param maxWorkers maximum number of workers taking lists at the same time
+	 * @param maxPerHost maximum number of downloads running at the same time for each host
+	 */
+	DownloadScheduler(int maxWorkers, int maxPerHost) {
+		this.mMaxWorkers = maxWorkers;
+		setMaxPerHost(maxPerHost);
+	}
+
+	synchronized void setMaxPerHost(int maxPerHost) {
+		if (maxPerHost <= 0) throw new IllegalArgumentException("invalid number of downloads per host "+maxPerHost);
+		mMaxPerHost = maxPerHost;
+	}
+
+	/**
+	 * @param url URL of a picture
+	 * @return the host used to group the downloads, an empty string for URLs with no host
+	 */
+	static String getHostKey(String url) {
+		String host = HostStatistics.getHost(url);
+		return null==host ? "" : host;
+	}
+
+	/**
+	 * Add a list to download
+	 * @param jobList
+	 * @return {@code true} if a new worker should be started, it will get its first list with {@link #next(PictureJobList)}
+	 */
+	synchronized boolean add(PictureJobList jobList) {
+		final String host = getHostKey(jobList.url);
+		HostQueue queue = mHosts.get(host);
+		if (null==queue) {
+			queue = new HostQueue(host);
+			mHosts.put(host, queue);
+		}
+		if (queue.waiting.isEmpty())
+			mWaitingHosts.add(queue);
+		queue.waiting.add(jobList);
+
+		if (mWorkers < mMaxWorkers) {
+			++mWorkers;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Raise the priority of a list, moving it up in its queue if it's waiting
+	 * @param jobList
+	 * @param priority the new priority, ignored if it's lower than the current one
+	 */
+	synchronized void raisePriority(PictureJobList jobList, int priority) {
+		if (priority <= jobList.getPriority())
+			return;
+		// the order of a waiting list can't change while it's in the queue
+		HostQueue queue = mHosts.get(getHostKey(jobList.url));
+		if (null!=queue && queue.waiting.remove(jobList)) {
+			jobList.setPriority(priority);
+			queue.waiting.add(jobList);
+		} else {
+			jobList.setPriority(priority);
+		}
+	}
+
+	/**
+	 * Remove a list that is waiting to be downloaded
+	 * @param jobList
+	 * @return {@code false} if the list was not waiting, it may be running or done
+	 */
+	synchronized boolean remove(PictureJobList jobList) {
+		HostQueue queue = mHosts.get(getHostKey(jobList.url));
+		if (null==queue || !queue.waiting.remove(jobList))
+			return false;
+		if (queue.waiting.isEmpty()) {
+			int index = mWaitingHosts.indexOf(queue);
+			mWaitingHosts.remove(index);
+			if (index < mNextHost)
+				--mNextHost;
+			if (0==queue.running)
+				mHosts.remove(queue.host);
+		}
+		return true;
+	}
+
+	/**
+	 * Get the next list a worker should download
+	 * @param finished the list the worker just ran, {@code null} for a new worker
+	 * @return the list to download or {@code null} if the worker should stop, it's not counted anymore
+	 */
+	synchronized PictureJobList next(PictureJobList finished) {
+		if (null!=finished) {
+			HostQueue queue = mHosts.get(getHostKey(finished.url));
+			--queue.running;
+			if (0==queue.running && queue.waiting.isEmpty())
+				mHosts.remove(queue.host);
+		}
+
+		final int count = mWaitingHosts.size();
+		HostQueue best = null;
+		int bestIndex = -1;
+		for (int i=0; i<count; ++i) {
+			int index = (mNextHost + i) % count;
+			HostQueue queue = mWaitingHosts.get(index);
+			if (queue.running >= mMaxPerHost)
+				continue;
+			if (null==best || queue.waiting.peek().getPriority() > best.waiting.peek().getPriority()) {
+				best = queue;
+				bestIndex = index;
+			}
+		}
+
+		if (null==best) {
+			--mWorkers;
+			return null;
+		}
+
+		PictureJobList jobList = best.waiting.poll();
+		++best.running;
+		if (best.waiting.isEmpty()) {
+			mWaitingHosts.remove(bestIndex);
+			mNextHost = bestIndex;
+		} else {
+			mNextHost = bestIndex + 1;
+		}
+		if (mNextHost >= mWaitingHosts.size())
+			mNextHost = 0;
+		return jobList;
+	}
+
+	/**
+	 * A worker returned by {@link #add(PictureJobList)} could not be started
+	 */
+	synchronized void onWorkerRejected() {
+		--mWorkers;
+	}
+
+	/**
+	 * @param host the host of the URLs
+	 * @return the number of lists waiting to be downloaded for this host
+	 */
+	synchronized int getWaitingCount(String host) {
+		HostQueue queue = mHosts.get(host);
+		return null==queue ? 0 : queue.waiting.size();
+	}
+
+	/**
+	 * @param host the host of the URLs
+	 * @return the number of lists being downloaded for this host
+	 */
+	synchronized int getRunningCount(String host) {
+		HostQueue queue = mHosts.get(host);
+		return null==queue ? 0 : queue.running;
+	}
+}
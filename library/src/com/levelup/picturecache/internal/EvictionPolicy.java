@@ -0,0 +1,48 @@
+package com.levelup.picturecache.internal;
+
+import java.util.Map.Entry;
+
+import com.levelup.picturecache.LifeSpan;
+import com.levelup.picturecache.PictureCache;
+
+/**
+ * Decide in which order the items of each {@link LifeSpan} are removed when the cache needs room
+ * <p>
+ * Implementations are not thread safe, the {@link PictureCache} only uses them under the lock on its data
+ * @see OldestFirstEvictionPolicy
+ * @see GreedyDualSizeEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+	/**
+	 * Start tracking an item, replacing the previous item for this key if there was one
+	 * <p>The {@link LifeSpan}, size and access date of the item don't change until it's removed from the policy</p>
+	 * @param key key of the item in the cache
+	 * @param item the item to track
+	 */
+	void add(CacheKey key, CacheItem item);
+
+	/**
+	 * Stop tracking the item for this key, does nothing if the key is not tracked
+	 * @param key key of the item in the cache
+	 */
+	void remove(CacheKey key);
+
+	/**
+	 * @param lifeSpan type of {@link LifeSpan}
+	 * @return the next item to evict for this {@link LifeSpan} or {@code null} if there is none
+	 */
+	Entry<CacheKey, CacheItem> peekVictim(LifeSpan lifeSpan);
+
+	/**
+	 * Stop tracking the next item to evict for this {@link LifeSpan} and return it
+	 * @param lifeSpan type of {@link LifeSpan}
+	 * @return the evicted item or {@code null} if there is none
+	 */
+	Entry<CacheKey, CacheItem> pollVictim(LifeSpan lifeSpan);
+
+	/**
+	 * Stop tracking all the items
+	 */
+	void clear();
+}
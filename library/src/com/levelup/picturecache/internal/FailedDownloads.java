@@ -0,0 +1,134 @@
+package com.levelup.picturecache.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.levelup.picturecache.FailureClass;
+
+/**
+ * Recent download failures of each URL, a URL is not downloaded again until its backoff delay is over
+ * <p>The delay doubles with each consecutive failure of the URL, starting from the base delay of its {@link FailureClass}</p>
+ */
+public class FailedDownloads {
+
+	/** maximum number of URLs remembered, the least recently used ones are forgotten first */
+	private static final int MAX_ENTRIES = 256;
+
+	private static class Failure {
+		FailureClass failureClass;
+		int count;
+		long retryDate;
+	}
+
+	private final LinkedHashMap<String, Failure> mFailures = new LinkedHashMap<String, Failure>(16, 0.75f, true) {
+		private static final long serialVersionUID = -3553163512547364394L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/**
+	 * @param failureClass kind of failure
+	 * @return the delay before trying a URL again after its first failure, in milliseconds
+	 */
+	private static long getBaseDelay(FailureClass failureClass) {
+		switch (failureClass) {
+		case NOT_FOUND:
+			return 5 * 60 * 1000L;
+		case UNKNOWN_HOST:
+			return 30 * 1000L;
+		default:
+			return 5 * 1000L;
+		}
+	}
+
+	/**
+	 * @param failureClass kind of failure
+	 * @return the longest delay before trying a URL again, in milliseconds
+	 */
+	private static long getMaxDelay(FailureClass failureClass) {
+		switch (failureClass) {
+		case NOT_FOUND:
+			return 24 * 60 * 60 * 1000L;
+		case UNKNOWN_HOST:
+			return 30 * 60 * 1000L;
+		default:
+			return 5 * 60 * 1000L;
+		}
+	}
+
+	/**
+	 * Record the failure to download a URL
+	 * @param url URL that failed
+	 * @param failureClass kind of failure
+	 * @param now the current date in milliseconds
+	 */
+	public void recordFailure(String url, FailureClass failureClass, long now) {
+		if (null==url || null==failureClass)
+			return;
+		synchronized (mFailures) {
+			Failure failure = mFailures.get(url);
+			if (null==failure) {
+				failure = new Failure();
+				mFailures.put(url, failure);
+			} else if (failure.failureClass!=failureClass)
+				failure.count = 0; // a different problem, start the backoff again
+			failure.failureClass = failureClass;
+			++failure.count;
+			final long maxDelay = getMaxDelay(failureClass);
+			long delay = getBaseDelay(failureClass);
+			for (int i=1; i<failure.count && delay < maxDelay; ++i)
+				delay <<= 1;
+			failure.retryDate = now + Math.min(delay, maxDelay);
+		}
+	}
+
+	/**
+	 * @param url URL of an item
+	 * @param now the current date in milliseconds
+	 * @return {@code true} if the URL failed recently and should not be downloaded yet
+	 */
+	public boolean isBackingOff(String url, long now) {
+		if (null==url)
+			return false;
+		synchronized (mFailures) {
+			Failure failure = mFailures.get(url);
+			return null!=failure && now < failure.retryDate;
+		}
+	}
+
+	/**
+	 * Forget the failures of a URL, the next request will download it
+	 * @param url URL of an item
+	 */
+	public void clear(String url) {
+		synchronized (mFailures) {
+			mFailures.remove(url);
+		}
+	}
+
+	/**
+	 * Forget the failures of all URLs
+	 */
+	public void clearAll() {
+		synchronized (mFailures) {
+			mFailures.clear();
+		}
+	}
+
+	/**
+	 * Forget the failures that may have been caused by the lack of connectivity, the URLs that were not found are kept
+	 */
+	public void onConnectivityChanged() {
+		synchronized (mFailures) {
+			Iterator<Failure> it = mFailures.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().failureClass!=FailureClass.NOT_FOUND)
+					it.remove();
+			}
+		}
+	}
+}
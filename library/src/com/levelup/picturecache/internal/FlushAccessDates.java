@@ -0,0 +1,18 @@
+package com.levelup.picturecache.internal;
+
+import st.gaw.db.AsynchronousDbHelper;
+import st.gaw.db.AsynchronousDbOperation;
+import st.gaw.db.MapEntry;
+
+import com.levelup.picturecache.PictureCache;
+
+/**
+ * Write the access dates of the items used since the last flush in the database, in a single transaction
+ */
+public class FlushAccessDates implements AsynchronousDbOperation<MapEntry<CacheKey,CacheItem>> {
+
+	@Override
+	public void runInMemoryDbOperation(AsynchronousDbHelper<MapEntry<CacheKey, CacheItem>> db) {
+		((PictureCache) db).writeAccessDates();
+	}
+}
@@ -0,0 +1,82 @@
+package com.levelup.picturecache.internal;
+
+/**
+ * Count-Min sketch estimating how often each {@link CacheKey} is requested, used to filter the admission of new items in the cache
+ * <p>
+ * Each key is counted in {@link #DEPTH} rows of small saturating counters. The estimate is the minimum of these counters.
+ * Once {@link #mSampleSize} increments have been recorded all the counters are halved so old popularity fades away.
+ * <p>
+ * No lock is needed: concurrent increments or a concurrent halving may be lost, which only shifts the estimates a bit.
+ * A counter is read once and written with that value plus one, so it never goes past its maximum even when the
+ * increments race. {@link #frequency(CacheKey)} may read counters being updated.
+ */
+public class FrequencySketch {
+
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final int[] SEEDS = { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };
+
+	private final byte[][] mCounters;
+	private final int mIndexShift;
+	private final int mSampleSize;
+	private int mAdditions;
+
+	/**
+	 * @param width number of counters per row, rounded up to a power of 2. Should be about the number of items in the cache
+	 */
+	public FrequencySketch(int width) {
+		final int rowSize = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+		this.mIndexShift = 32 - Integer.numberOfTrailingZeros(rowSize);
+		this.mCounters = new byte[DEPTH][rowSize];
+		this.mSampleSize = 10 * rowSize;
+	}
+
+	/**
+	 * Record a request for this key
+	 */
+	public void increment(CacheKey key) {
+		final int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int i=0; i<DEPTH; ++i) {
+			final int index = indexOf(hash, i);
+			final byte count = mCounters[i][index];
+			if (count < MAX_COUNT) {
+				mCounters[i][index] = (byte) (count + 1);
+				added = true;
+			}
+		}
+
+		if (added && ++mAdditions >= mSampleSize)
+			reset();
+	}
+
+	/**
+	 * @return the estimated number of recent requests for this key, up to 15
+	 */
+	public int frequency(CacheKey key) {
+		final int hash = spread(key.hashCode());
+		int result = MAX_COUNT;
+		for (int i=0; i<DEPTH; ++i)
+			result = Math.min(result, mCounters[i][indexOf(hash, i)]);
+		return result;
+	}
+
+	private void reset() {
+		for (byte[] row : mCounters) {
+			for (int i=0; i<row.length; ++i)
+				row[i] >>= 1;
+		}
+		mAdditions >>= 1;
+	}
+
+	private int indexOf(int hash, int row) {
+		return (hash * SEEDS[row]) >>> mIndexShift;
+	}
+
+	private static int spread(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x45d9f3b;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+}
@@ -0,0 +1,47 @@
+package com.levelup.picturecache.internal;
+
+import com.levelup.picturecache.LifeSpan;
+
+/**
+ * GreedyDual-Size {@link EvictionPolicy}, evict first the items that are big and cheap to download again
+ * <p>
+ * Each item gets the priority {@code L + cost / size} where the cost is the download time measured for its host
+ * and {@code L} is the priority of the last item evicted in the same {@link LifeSpan}, so the items that stay
+ * in the cache without being used age compared to the new ones.
+ * <p>
+ * A small avatar is kept much longer than a big picture from the same host.
+ */
+public class GreedyDualSizeEvictionPolicy extends PriorityEvictionPolicy {
+
+	/** fixed point precision of the cost/size ratio */
+	private static final int COST_SHIFT = 16;
+
+	private final HostStatistics mHostStatistics;
+	private final long[] mInflation = new long[LifeSpan.values().length];
+
+	/**
+	 * @param hostStatistics download times of each host, see {@link com.levelup.picturecache.PictureCache#getHostStatistics()}
+	 */
+	public GreedyDualSizeEvictionPolicy(HostStatistics hostStatistics) {
+		if (null==hostStatistics) throw new NullPointerException("we need the host statistics to estimate the download cost");
+		this.mHostStatistics = hostStatistics;
+	}
+
+	@Override
+	protected long getPriority(LifeSpan lifeSpan, CacheKey key, CacheItem item) {
+		final long cost = mHostStatistics.getDownloadTime(item.URL);
+		return mInflation[lifeSpan.ordinal()] + (cost << COST_SHIFT) / Math.max(1, item.fileSize);
+	}
+
+	@Override
+	protected void onEvicted(LifeSpan lifeSpan, long priority) {
+		mInflation[lifeSpan.ordinal()] = priority;
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		for (int i=0; i<mInflation.length; ++i)
+			mInflation[i] = 0;
+	}
+}
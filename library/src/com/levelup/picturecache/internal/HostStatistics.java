@@ -0,0 +1,74 @@
+package com.levelup.picturecache.internal;
+
+import java.util.HashMap;
+
+/**
+ * Statistics about the downloads made from each host
+ * <p>The download time of each host is a moving average of the recent downloads</p>
+ */
+public class HostStatistics {
+
+	/** download time used for hosts we have no measure for yet, in milliseconds */
+	private static final long DEFAULT_DOWNLOAD_TIME = 1000;
+
+	/** weight of the old values in the moving average, as a power of 2 */
+	private static final int AVERAGE_SHIFT = 3;
+
+	private final HashMap<String, long[]> mDownloadTimes = new HashMap<String, long[]>();
+
+	/**
+	 * @param url the URL of an item
+	 * @return the host part of the URL or {@code null} if there is none
+	 */
+	public static String getHost(String url) {
+		if (null==url)
+			return null;
+		int start = url.indexOf("://");
+		if (start < 0)
+			return null;
+		start += 3;
+		int end = url.indexOf('/', start);
+		return end < 0 ? url.substring(start) : url.substring(start, end);
+	}
+
+	/**
+	 * Record the time it took to download an item
+	 * @param url URL of the downloaded item
+	 * @param duration time to get the whole item in milliseconds
+	 */
+	public void recordDownload(String url, long duration) {
+		String host = getHost(url);
+		if (null==host)
+			return;
+		synchronized (mDownloadTimes) {
+			long[] average = mDownloadTimes.get(host);
+			if (null==average)
+				mDownloadTimes.put(host, new long[] { duration });
+			else
+				average[0] += (duration - average[0]) >> AVERAGE_SHIFT;
+		}
+	}
+
+	/**
+	 * @param url URL of an item
+	 * @return the estimated time to download the item again in milliseconds
+	 */
+	public long getDownloadTime(String url) {
+		return getHostDownloadTime(getHost(url));
+	}
+
+	/**
+	 * @param host the host part of the URLs
+	 * @return the average time to download an item from this host in milliseconds
+	 */
+	public long getHostDownloadTime(String host) {
+		if (null!=host) {
+			synchronized (mDownloadTimes) {
+				long[] average = mDownloadTimes.get(host);
+				if (null!=average)
+					return average[0];
+			}
+		}
+		return DEFAULT_DOWNLOAD_TIME;
+	}
+}
@@ -0,0 +1,134 @@
+package com.levelup.picturecache.internal;
+
+import java.net.HttpURLConnection;
+import java.util.Locale;
+
+import android.text.TextUtils;
+
+import com.levelup.picturecache.LogManager;
+import com.levelup.picturecache.PictureCache;
+
+/**
+ * Cache related headers of the HTTP response of a download, the validators are stored with the {@link CacheItem} of each
+ * variant and the freshness gives its {@link CacheItem#expirationDate}
+ */
+public class HttpCacheHeaders {
+	/**
+	 * the ETag validator of the response, {@code null} if there is none
+	 */
+	public final String eTag;
+	/**
+	 * the Last-Modified validator of the response in milliseconds, {@code 0} if there is none
+	 */
+	public final long lastModified;
+	/**
+	 * the Cache-Control max-age of the response in seconds, {@code -1} if there is none
+	 */
+	public final long maxAge;
+	/**
+	 * the Expires date of the response in milliseconds, {@code 0} if there is none, {@link #EXPIRED} if it's not a valid date
+	 */
+	public final long expires;
+	/**
+	 * the Date of the response in milliseconds, {@code 0} if there is none
+	 */
+	public final long date;
+	/**
+	 * the response has Cache-Control no-store, it must not be written in the cache
+	 */
+	public final boolean noStore;
+	/**
+	 * the response has Cache-Control no-cache, it must be revalidated before each use
+	 */
+	public final boolean noCache;
+
+	/**
+	 * the {@link #expires} value of an invalid Expires header like "0", it means the response is already expired
+	 */
+	public static final long EXPIRED = 1;
+
+	public HttpCacheHeaders(String eTag, long lastModified, String cacheControl, long expires, long date) {
+		this.eTag = TextUtils.isEmpty(eTag) ? null : eTag;
+		this.lastModified = lastModified;
+		this.expires = expires;
+		this.date = date;
+
+		long maxAge = -1;
+		boolean noStore = false, noCache = false;
+		if (!TextUtils.isEmpty(cacheControl)) {
+			for (String directive : cacheControl.split(",")) {
+				directive = directive.trim().toLowerCase(Locale.US);
+				if (directive.equals("no-store")) {
+					noStore = true;
+				} else if (directive.equals("no-cache")) {
+					noCache = true;
+				} else if (directive.startsWith("max-age=")) {
+					try {
+						maxAge = Long.parseLong(directive.substring(8).replace("\"", ""));
+					} catch (NumberFormatException e) {
+						LogManager.getLogger().d(PictureCache.LOG_TAG, "invalid Cache-Control "+cacheControl);
+					}
+				}
+			}
+		}
+		this.maxAge = maxAge;
+		this.noStore = noStore;
+		this.noCache = noCache;
+	}
+
+	/**
+	 * @param connection a connection with a response
+	 * @return the cache headers of the response
+	 */
+	public static HttpCacheHeaders fromResponse(HttpURLConnection connection) {
+		long expires = connection.getExpiration();
+		if (0==expires && !TextUtils.isEmpty(connection.getHeaderField("Expires")))
+			// getExpiration() returns 0 for a date it can't parse
+			expires = EXPIRED;
+		return new HttpCacheHeaders(connection.getHeaderField("ETag"), connection.getLastModified(),
+				connection.getHeaderField("Cache-Control"), expires, connection.getDate());
+	}
+
+	/**
+	 * @param now the current date in milliseconds
+	 * @return the date until which the response is fresh according to the server, {@code 0} if it didn't say
+	 */
+	public long getFreshnessDeadline(long now) {
+		if (noCache)
+			return now;
+		if (maxAge >= 0)
+			return now + maxAge * 1000;
+		if (0!=expires) {
+			// relative to the server clock
+			if (0!=date)
+				return now + Math.max(0, expires - date);
+			return Math.max(now, expires);
+		}
+		return 0;
+	}
+
+	/**
+	 * @return {@code true} if the response can be revalidated with a conditional request
+	 */
+	public boolean hasValidators() {
+		return null!=eTag || 0!=lastModified;
+	}
+
+	/**
+	 * Make the request conditional, the server answers with {@link HttpURLConnection#HTTP_NOT_MODIFIED} if the content didn't change
+	 * @param connection a connection not connected yet
+	 * @param eTag the ETag of the cached item or {@code null}
+	 * @param lastModified the Last-Modified date of the cached item or {@code 0}
+	 */
+	public static void setConditions(HttpURLConnection connection, String eTag, long lastModified) {
+		if (null!=eTag)
+			connection.setRequestProperty("If-None-Match", eTag);
+		if (0!=lastModified)
+			connection.setIfModifiedSince(lastModified);
+	}
+
+	@Override
+	public String toString() {
+		return "ETag:"+eTag+" Last-Modified:"+lastModified+" max-age:"+maxAge+" Expires:"+expires+(noStore ? " no-store" : "")+(noCache ? " no-cache" : "");
+	}
+}
@@ -0,0 +1,14 @@
+package com.levelup.picturecache.internal;
+
+import com.levelup.picturecache.LifeSpan;
+
+/**
+ * Default {@link EvictionPolicy}, the least recently accessed items are evicted first
+ */
+public class OldestFirstEvictionPolicy extends PriorityEvictionPolicy {
+
+	@Override
+	protected long getPriority(LifeSpan lifeSpan, CacheKey key, CacheItem item) {
+		return item.lastAccessDate;
+	}
+}
@@ -0,0 +1,265 @@
+package com.levelup.picturecache.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+import android.text.TextUtils;
+
+import com.levelup.picturecache.LogManager;
+import com.levelup.picturecache.PictureCache;
+
+/**
+ * Download of a URL kept in the temporary folder so it can be resumed with a Range request if it stops
+ * <p>The URL and the validator sent in the If-Range header are stored next to the data, so the rest of a different
+ * content is never appended to it</p>
+ * <p>The partial downloads are kept in their own folder, the oldest ones are deleted when there are too many of them, see {@link #sweep(File, long, long)}</p>
+ */
+class PartialDownload {
+
+	private static final String FOLDER = "partial";
+	private static final String RANGE_SUFFIX = ".range";
+
+	/** partial downloads not resumed for that long are deleted, in milliseconds */
+	private static final long MAX_AGE = 3 * 24 * 60 * 60 * 1000L;
+	/** maximum number of partial downloads kept */
+	private static final int MAX_COUNT = 32;
+	/** maximum total size of the partial downloads kept, in bytes */
+	private static final long MAX_BYTES = 16 * 1024 * 1024;
+
+	/** files being written or read by a download, a URL is only downloaded by one list at a time */
+	private static final HashSet<File> sFilesInUse = new HashSet<File>();
+
+	final File file;
+	private final File infoFile;
+	private final String url;
+
+	/**
+	 * @param tempDir the temporary folder of the cache
+	 * @param url the URL being downloaded
+	 */
+	PartialDownload(File tempDir, String url) {
+		final File dir = getFolder(tempDir);
+		dir.mkdirs();
+		final String name = "part_"+Integer.toHexString(url.hashCode())+'_'+url.length();
+		this.file = new File(dir, name);
+		this.infoFile = new File(dir, name+RANGE_SUFFIX);
+		this.url = url;
+	}
+
+	/**
+	 * @return {@code false} if another download is using the file
+	 */
+	boolean acquire() {
+		synchronized (sFilesInUse) {
+			return sFilesInUse.add(file);
+		}
+	}
+
+	void release() {
+		synchronized (sFilesInUse) {
+			sFilesInUse.remove(file);
+		}
+	}
+
+	/**
+	 * @return the validator to send in the If-Range header to resume the download, {@code null} if it can't be resumed
+	 */
+	String getResumeValidator() {
+		if (file.length() <= 0 || !infoFile.exists())
+			return null;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(infoFile));
+			if (!url.equals(reader.readLine()))
+				return null; // another URL with the same file name
+			return reader.readLine();
+		} catch (IOException e) {
+			return null;
+		} finally {
+			try {
+				if (null!=reader)
+					reader.close();
+			} catch (IOException e) {
+				// we're done with it anyway
+			}
+		}
+	}
+
+	/**
+	 * Store the validator of the response being written, the data can be resumed later with it
+	 * @param validator {@code null} if the response can't be resumed
+	 */
+	void setResumeValidator(String validator) {
+		if (null==validator) {
+			infoFile.delete();
+			return;
+		}
+		FileWriter writer = null;
+		try {
+			writer = new FileWriter(infoFile);
+			writer.write(url);
+			writer.write('\n');
+			writer.write(validator);
+			writer.write('\n');
+		} catch (IOException e) {
+			LogManager.getLogger().d(PictureCache.LOG_TAG, "can't save the range info of "+url, e);
+			infoFile.delete();
+		} finally {
+			try {
+				if (null!=writer)
+					writer.close();
+			} catch (IOException e) {
+				infoFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * The data is complete, it can't be resumed anymore
+	 */
+	void complete() {
+		infoFile.delete();
+	}
+
+	/**
+	 * The download stopped before the end, the data is kept if it can be resumed
+	 */
+	void onStopped() {
+		if (file.length() <= 0 || !infoFile.exists())
+			delete();
+		else
+			sweep(file.getParentFile(), System.currentTimeMillis(), 0);
+	}
+
+	void delete() {
+		file.delete();
+		infoFile.delete();
+	}
+
+	private static class KeptFile {
+		final File file;
+		final long date;
+		final long length;
+
+		KeptFile(File file) {
+			this.file = file;
+			this.date = file.lastModified();
+			this.length = file.length();
+		}
+	}
+
+	/**
+	 * @param tempDir the temporary folder of the cache
+	 * @return the folder of the partial downloads
+	 */
+	static File getFolder(File tempDir) {
+		return new File(tempDir, FOLDER);
+	}
+
+	/**
+	 * Delete the partial downloads that are too old, then the oldest ones above {@link #MAX_COUNT} or {@link #MAX_BYTES},
+	 * the ones being used are kept
+	 * @param dir the folder of the partial downloads, see {@link #getFolder(File)}
+	 * @param now the current date in milliseconds
+	 * @param bytesToFree amount of storage to release on top of the limits, {@code 0} for none
+	 * @return the amount of bytes released
+	 */
+	static long sweep(File dir, long now, long bytesToFree) {
+		final File[] files = dir.listFiles();
+		if (null==files)
+			return 0;
+
+		long freed = 0;
+		long totalBytes = 0;
+		final List<KeptFile> kept = new ArrayList<KeptFile>();
+		synchronized (sFilesInUse) {
+			for (File f : files) {
+				final String path = f.getPath();
+				if (path.endsWith(RANGE_SUFFIX)) {
+					final File data = new File(path.substring(0, path.length() - RANGE_SUFFIX.length()));
+					if (!sFilesInUse.contains(data) && !data.exists())
+						f.delete();
+					continue;
+				}
+				if (sFilesInUse.contains(f))
+					continue;
+				KeptFile keptFile = new KeptFile(f);
+				if (keptFile.date < now - MAX_AGE) {
+					freed += keptFile.length;
+					deleteData(f);
+				} else {
+					kept.add(keptFile);
+					totalBytes += keptFile.length;
+				}
+			}
+		}
+
+		Collections.sort(kept, new Comparator<KeptFile>() {
+			@Override
+			public int compare(KeptFile lhs, KeptFile rhs) {
+				return lhs.date < rhs.date ? -1 : (lhs.date==rhs.date ? 0 : 1);
+			}
+		});
+		int count = kept.size();
+		for (KeptFile keptFile : kept) {
+			if (count <= MAX_COUNT && totalBytes <= MAX_BYTES && freed >= bytesToFree)
+				break;
+			synchronized (sFilesInUse) {
+				if (sFilesInUse.contains(keptFile.file))
+					continue;
+				deleteData(keptFile.file);
+			}
+			--count;
+			totalBytes -= keptFile.length;
+			freed += keptFile.length;
+		}
+		if (PictureCache.DEBUG_CACHE && 0!=freed) LogManager.getLogger().d(PictureCache.LOG_TAG, "deleted "+freed+" bytes of partial downloads");
+		return freed;
+	}
+
+	private static void deleteData(File data) {
+		data.delete();
+		new File(data.getPath()+RANGE_SUFFIX).delete();
+	}
+
+	/**
+	 * @param connection a connection with a response
+	 * @return the validator of the response to use in a If-Range header, {@code null} if there is none
+	 */
+	static String getRangeValidator(HttpURLConnection connection) {
+		String eTag = connection.getHeaderField("ETag");
+		if (!TextUtils.isEmpty(eTag) && !eTag.startsWith("W/"))
+			return eTag; // If-Range only works with a strong ETag
+		String lastModified = connection.getHeaderField("Last-Modified");
+		return TextUtils.isEmpty(lastModified) ? null : lastModified;
+	}
+
+	/**
+	 * @param contentRange the Content-Range header of a {@code 206} response, like "bytes 100-199/200"
+	 * @return the position of the first byte sent by the server, {@code -1} if the header is missing or invalid
+	 */
+	static long getRangeStart(String contentRange) {
+		if (TextUtils.isEmpty(contentRange))
+			return -1;
+		contentRange = contentRange.trim();
+		if (!contentRange.regionMatches(true, 0, "bytes ", 0, 6))
+			return -1;
+		final int dash = contentRange.indexOf('-', 6);
+		if (dash < 0)
+			return -1;
+		try {
+			return Long.parseLong(contentRange.substring(6, dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
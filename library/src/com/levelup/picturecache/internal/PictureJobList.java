@@ -9,30 +9,41 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.UnknownHostException;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.text.TextUtils;
 import android.util.FloatMath;
 
 import com.levelup.picturecache.BuildConfig;
+import com.levelup.picturecache.FailureClass;
 import com.levelup.picturecache.LifeSpan;
 import com.levelup.picturecache.LogManager;
 import com.levelup.picturecache.NetworkLoader;
 import com.levelup.picturecache.PictureCache;
 import com.levelup.picturecache.PictureJob;
+import com.levelup.picturecache.RetryPolicy;
 import com.levelup.picturecache.UIHandler;
 import com.levelup.picturecache.loaders.ViewLoader;
 
@@ -41,29 +52,80 @@ public class PictureJobList implements Runnable {
 	private static final boolean DEBUG_BITMAP_DOWNLOADER = false;
 
 	final String url;
+	/** order of creation of the list, the most recent goes first for the same priority */
+	final long sequence;
 	private final NetworkLoader networkLoader;
 	private final PictureCache mCache;
+	/** state of each job: {@code null} pending, {@code TRUE} processed, {@code FALSE} removed */
 	private final Map<PictureJob,Boolean> mTargetJobs = new HashMap<PictureJob,Boolean>();
+	/** jobs to process in order, a job may be in it after it was removed, its state in {@link #mTargetJobs} is authoritative */
+	private final LinkedList<PictureJob> mPendingJobs = new LinkedList<PictureJob>();
+	/** number of jobs pending or processed that were not removed */
+	private final AtomicInteger mLiveTargets = new AtomicInteger();
+	/** jobs already displaying an expired version of the picture, they are only drawn again if a new version is downloaded */
+	private final HashSet<PictureJob> mStaleShownJobs = new HashSet<PictureJob>();
 	private final DownloadManager mMonitor;
 
 	/**
 	 * Longest item (URL+key) {@link LifeSpan} 
 	 */
 	private LifeSpan mLifeSpan;
+	/**
+	 * Longest item (URL+key) time to live, {@code 0} if one of them never expires, {@code -1} when there's no item yet
+	 */
+	private long mTimeToLive = -1;
 	/**
 	 * Most recent item (URL+key) date
 	 */
 	private long mItemDate;
+	/**
+	 * Highest priority of the jobs, only changed by the {@link DownloadScheduler} so the order of its queues remains valid
+	 */
+	private volatile int mPriority;
 
 	private boolean mCanDownload;
 	private final AtomicBoolean mAborting = new AtomicBoolean();
 
+	/** {@code true} once the network stage is done, the next run is the decoding stage */
+	private boolean mNetworkStageDone;
+	/** file downloaded by the network stage, {@code null} if nothing was downloaded */
+	private File mDownloadedFile;
+	/** resumable file used by the network stage, released once the downloaded file is not needed anymore */
+	private PartialDownload mPartialDownload;
+	/** the network stage failed to download the file, don't try again in the decoding stage */
+	private boolean mDownloadFailed;
+	private final RetryPolicy mRetryPolicy;
+	/** number of times the network stage was tried again */
+	private int mRetries;
+	/** delay before trying the network stage again in milliseconds, {@code 0} if it's not tried again */
+	private long mRetryDelay;
+	/** connection and stream of the running download, closed when the list is cancelled */
+	private volatile URLConnection mDownloadConnection;
+	private volatile InputStream mDownloadStream;
+	/** cache headers of the HTTP response, {@code null} if the picture didn't come from HTTP */
+	private HttpCacheHeaders mResponseHeaders;
+
 	private static final int CONNECT_TIMEOUT_DL = 10000; // 10s
 
-	PictureJobList(PictureJob job, PictureCache cache, DownloadManager monitor) {
+	/**
+	 * Closing a connection may drain the stream or write on the socket, it's never done in the calling thread which may be the UI thread
+	 */
+	private static final ThreadPoolExecutor sConnectionCloser = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()) {
+		@Override
+		protected void beforeExecute(Thread t, Runnable r) {
+			super.beforeExecute(t, r);
+			t.setName("PictureCache-Close");
+			t.setPriority(Thread.MIN_PRIORITY);
+		}
+	};
+
+	PictureJobList(PictureJob job, PictureCache cache, DownloadManager monitor, long sequence) {
 		if (job.url==null) throw new NullPointerException("How are we supposed to download a null URL?");
 		this.url = job.url;
+		this.sequence = sequence;
+		this.mPriority = job.mPriority;
 		this.networkLoader = job.networkLoader;
+		this.mRetryPolicy = null!=job.mRetryPolicy ? job.mRetryPolicy : cache.getRetryPolicy();
 		this.mCache = cache;
 		this.mMonitor = monitor;
 	}
@@ -74,6 +136,42 @@ public class PictureJobList implements Runnable {
 	long getItemDate() {
 		return mItemDate;
 	}
+	/**
+	 * @return the earliest of the time to live of the jobs and the freshness given by the server, {@code 0} if the items never expire
+	 * <p>the server freshness is only used when the response has validators, otherwise an expired item would be downloaded again</p>
+	 */
+	long getExpirationDate() {
+		return getExpirationDate(null!=mResponseHeaders && mResponseHeaders.hasValidators());
+	}
+	/**
+	 * @param canRevalidate {@code true} if the items can be revalidated once they expire
+	 * @return the earliest of the time to live of the jobs and the freshness given by the server, {@code 0} if the items never expire
+	 */
+	private long getExpirationDate(boolean canRevalidate) {
+		final long now = System.currentTimeMillis();
+		long expirationDate = mTimeToLive <= 0 ? 0 : now + mTimeToLive;
+		if (canRevalidate && null!=mResponseHeaders) {
+			final long freshnessDeadline = mResponseHeaders.getFreshnessDeadline(now);
+			if (0!=freshnessDeadline && (0==expirationDate || freshnessDeadline < expirationDate))
+				expirationDate = freshnessDeadline;
+		}
+		return expirationDate;
+	}
+	HttpCacheHeaders getResponseHeaders() {
+		return mResponseHeaders;
+	}
+	int getPriority() {
+		return mPriority;
+	}
+	void setPriority(int priority) {
+		mPriority = priority;
+	}
+	/**
+	 * @return all the jobs that were added to the list
+	 */
+	synchronized List<PictureJob> getJobs() {
+		return new ArrayList<PictureJob>(mTargetJobs.keySet());
+	}
 
 	@Override
 	public String toString() {
@@ -81,50 +179,171 @@ public class PictureJobList implements Runnable {
 	}
 
 	public void run() {
+		if (!mNetworkStageDone) {
+			mNetworkStageDone = true;
+			downloadForPendingTargets();
+			if (mMonitor!=null) {
+				if (mRetryDelay > 0) {
+					// the network stage waits for its next try without a thread
+					final long delay = mRetryDelay;
+					mRetryDelay = 0;
+					mNetworkStageDone = false;
+					mMonitor.retryDownload(this, delay);
+				} else
+					mMonitor.onNetworkStageDone(this);
+				return;
+			}
+		}
+		decodeTargets();
+	}
+
+	/**
+	 * Network stage: download the file if one of the pending targets is not in the cache
+	 */
+	private void downloadForPendingTargets() {
+		if (!mCanDownload || isResourceUrl(url))
+			return;
+
+		final long now = System.currentTimeMillis();
+		PictureJob missingTarget = null;
+		PictureJob staleTarget = null;
+		CacheItem staleItem = null;
+		synchronized (this) {
+			for (PictureJob pendingJob : mPendingJobs) {
+				if (mTargetJobs.get(pendingJob)!=null)
+					continue;
+				CacheItem item = mCache.get(pendingJob.key);
+				if (null==item) {
+					missingTarget = pendingJob;
+					break;
+				}
+				if (null==staleTarget && item.isExpired(now)) {
+					staleTarget = pendingJob;
+					staleItem = item;
+				}
+			}
+		}
+		if (null==missingTarget && null==staleTarget)
+			return;
+
+		// a variant missing from the cache needs the content, otherwise the expired ones can be revalidated
+		final CacheItem validators = null==missingTarget && staleItem.hasValidators() ? staleItem : null;
+		final File tmpFile;
+		PartialDownload partial = new PartialDownload(mCache.getAvailaibleTempDir(), url);
+		if (partial.acquire()) {
+			mPartialDownload = partial;
+			tmpFile = partial.file;
+		} else {
+			// the previous download of this URL is still running or being decoded
+			partial = null;
+			try {
+				// another list may download the same URL for other keys at the same time
+				tmpFile = File.createTempFile("dl_", null, mCache.getAvailaibleTempDir());
+			} catch (IOException e) {
+				LogManager.getLogger().w(PictureCache.LOG_TAG, "can't create a temporary file for "+url, e);
+				mDownloadFailed = true;
+				return;
+			}
+		}
+		try {
+			if (downloadInTempFile(tmpFile, validators, partial)) {
+				mDownloadedFile = tmpFile;
+				if (null!=partial)
+					partial.complete();
+			} else
+				// the revalidated items have validators even if the 304 doesn't repeat them
+				mCache.onNotModified(getRevalidatedKeys(validators, now), mResponseHeaders, getExpirationDate(true));
+		} catch (DownloadFailureException e) {
+			if (isUnused()) {
+				// the download was closed because nobody wants it anymore, the URL didn't fail
+				if (DEBUG_BITMAP_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, this+" download aborted");
+			} else if (null!=mMonitor && mRetryPolicy.shouldRetry(e.getFailureClass(), mRetries)) {
+				mRetryDelay = Math.max(1, mRetryPolicy.getRetryDelay(mRetries++));
+				if (DEBUG_BITMAP_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, this+" retry #"+mRetries+" in "+mRetryDelay+"ms after "+e);
+			} else {
+				mDownloadFailed = true;
+				mCache.getFailedDownloads().recordFailure(url, e.getFailureClass(), System.currentTimeMillis());
+			}
+		} catch (Throwable e) {
+			LogManager.getLogger().w(PictureCache.LOG_TAG, "exception downloading "+url, e);
+			mDownloadFailed = true;
+		} finally {
+			if (null==mDownloadedFile) {
+				if (null!=partial) {
+					partial.onStopped();
+					partial.release();
+					mPartialDownload = null;
+				} else
+					tmpFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Decoding stage: create the bitmaps of the targets from the cache or the downloaded file and display them
+	 */
+	private void decodeTargets() {
 		//LogManager.getLogger().v( "start image load in cache: " + mURL);
 		final HashMap<CacheKey,Drawable> targetBitmaps = new HashMap<CacheKey, Drawable>();
 		final HashMap<CacheVariant,Drawable> targetNewBitmaps = new HashMap<CacheVariant, Drawable>();
-		File downloadedToFile = null;
-		boolean downloaded = false;
+		// targets that need a download the network stage didn't do, it's never done in the decoding thread
+		final List<PictureJob> networkTargets = new ArrayList<PictureJob>();
+		final File downloadedToFile = mDownloadedFile;
+		final boolean downloaded = null!=downloadedToFile;
 		try {
 			BitmapFactory.Options tmpFileOptions = new BitmapFactory.Options();
 			tmpFileOptions.inJustDecodeBounds = false;
+			// the downloaded file decoded once at the largest resolution the targets need, each target scales it down
+			Bitmap sourceBitmap = null;
+			int sourceSampleSize = 0;
+
+			if (downloaded) {
+				// we need the dimensions of the downloaded file
+				tmpFileOptions.inJustDecodeBounds = true;
+				BitmapFactory.decodeFile(downloadedToFile.getAbsolutePath(), tmpFileOptions);
+				if (DEBUG_BITMAP_DOWNLOADER && tmpFileOptions.outHeight <= 0) LogManager.getLogger().i(PictureCache.LOG_TAG, this+" failed to get dimensions from "+downloadedToFile);
+			}
 
 			for (;;) {
-				PictureJob target = null;
-				synchronized (this) {
-					for (Entry<PictureJob, Boolean> targetEntry : mTargetJobs.entrySet()) {
-						if (targetEntry.getValue()==null) { // this job has not been processed yet
-							target = targetEntry.getKey();
-						}
-					}
-				}
+				final PictureJob target = nextPendingJob();
 				if (null==target)
 					break;
 
-				File fileInCache = mCache.getCachedFile(target.key);
-				boolean bitmapWasInCache = fileInCache!=null;
-				if (!bitmapWasInCache) {
-					// we can't use the older version, download the file and create the stored file again
-					fileInCache = mCache.getCachedFilepath(target.key);
-					if (downloadedToFile==null && mCanDownload) {
-						if (target.getStorageTransform()==null)
-							downloadedToFile = fileInCache;
-						else
-							downloadedToFile = new File(mCache.getAvailaibleTempDir(), "tmp_"+target.key.getFilename());
+				if (null==mDownloadedFile && isStaleShown(target)) {
+					// not modified or failed, the expired version remains displayed
+					synchronized (this) {
+						if (mTargetJobs.get(target)==null)
+							mTargetJobs.put(target, Boolean.TRUE);
 					}
+					continue;
 				}
 
+				final CacheItem cachedItem = mCache.get(target.key);
+				// an expired item is only used if a new version could not be downloaded
+				File fileInCache = null==cachedItem || (null!=mDownloadedFile && cachedItem.isExpired(System.currentTimeMillis())) ? null : cachedItem.path;
+				Drawable displayDrawable = null;
 				if (fileInCache!=null) {
-					Drawable displayDrawable;
-					if (!bitmapWasInCache) {
-						displayDrawable = null;
-					} else if (mCache.getBitmapCache()!=null) {
-						displayDrawable = mCache.getBitmapCache().put(keyToBitmapCacheKey(target, url), fileInCache, getOutputOptions(tmpFileOptions.outWidth, tmpFileOptions.outHeight, target.key));
+					if (mCache.getBitmapCache()!=null) {
+						// the stored dimensions avoid a bounds decoding pass on the file
+						displayDrawable = mCache.getBitmapCache().put(keyToBitmapCacheKey(target, url), fileInCache, getOutputOptions(cachedItem.width, cachedItem.height, target.key));
 					} else {
-						displayDrawable = new BitmapDrawable(mCache.getContext().getResources(), fileInCache.getAbsolutePath());
+						BitmapDrawable fileDrawable = new BitmapDrawable(mCache.getContext().getResources(), fileInCache.getAbsolutePath());
+						if (null!=fileDrawable.getBitmap())
+							displayDrawable = fileDrawable;
+					}
+					if (displayDrawable==null) {
+						// the file is missing or corrupt, load it again
+						mCache.invalidateCachedFile(target.key, fileInCache);
+						fileInCache = null;
 					}
+				}
+				boolean bitmapWasInCache = fileInCache!=null;
+				if (!bitmapWasInCache) {
+					// we can't use the older version, create the stored file again from the downloaded file
+					fileInCache = mCache.getCachedFilepath(target.key);
+				}
 
+				if (fileInCache!=null) {
 					if (displayDrawable==null) {
 						// we don't have that final file yet, use the download file to generate it
 						displayDrawable = targetBitmaps.get(target.key);
@@ -139,31 +358,28 @@ public class PictureJobList implements Runnable {
 							}
 						}
 
-						if (displayDrawable==null && downloadedToFile!=null && !downloaded) {
-							try {
-								downloadInTempFile(downloadedToFile);
-								// we need the dimensions of the downloaded file
-								tmpFileOptions.inJustDecodeBounds = true;
-								BitmapFactory.decodeFile(downloadedToFile.getAbsolutePath(), tmpFileOptions);
-								if (DEBUG_BITMAP_DOWNLOADER && tmpFileOptions.outHeight <= 0) LogManager.getLogger().i(PictureCache.LOG_TAG, this+" failed to get dimensions from "+downloadedToFile);
-								downloaded = true;
-							} finally {
-								if (!downloaded && downloadedToFile!=fileInCache)
-									downloadedToFile.delete();
+						if (displayDrawable==null && !downloaded && mCanDownload && !mDownloadFailed && !isResourceUrl(url)) {
+							// added after the network stage or its cached file could not be read, it goes back to the network
+							synchronized (this) {
+								if (mTargetJobs.get(target)==null) {
+									mTargetJobs.put(target, Boolean.FALSE);
+									mLiveTargets.decrementAndGet();
+									networkTargets.add(target);
+								}
 							}
-							checkAbort();
+							continue;
 						}
 
 						if (downloaded) {
-							Bitmap bitmap = null;
-							if (mCache.getBitmapCache()!=null) {
-								CacheableBitmapDrawable cachedDrawable = mCache.getBitmapCache().put(keyToBitmapCacheKey(target, url), downloadedToFile, getOutputOptions(tmpFileOptions.outWidth, tmpFileOptions.outHeight, target.key));
-								if (null!=cachedDrawable)
-									bitmap = cachedDrawable.getBitmap();
-							}
-							if (null==bitmap) {
-								bitmap = BitmapFactory.decodeFile(downloadedToFile.getAbsolutePath(), getOutputOptions(tmpFileOptions.outWidth, tmpFileOptions.outHeight, target.key));
+							final int targetSampleSize = getSampleSize(tmpFileOptions.outWidth, tmpFileOptions.outHeight, target.key);
+							if (null==sourceBitmap || sourceSampleSize > targetSampleSize) {
+								// decode for all the targets still pending, a target added later may need a larger one
+								BitmapFactory.Options sourceOptions = getOutputOptions(tmpFileOptions.outWidth, tmpFileOptions.outHeight, target.key);
+								sourceOptions.inSampleSize = Math.min(targetSampleSize, getPendingSampleSize(tmpFileOptions.outWidth, tmpFileOptions.outHeight));
+								sourceBitmap = BitmapFactory.decodeFile(downloadedToFile.getAbsolutePath(), sourceOptions);
+								sourceSampleSize = sourceOptions.inSampleSize;
 							}
+							Bitmap bitmap = sourceBitmap;
 							if (bitmap!=null) {
 								int finalHeight = target.key.getBitmapHeight(bitmap.getWidth(), bitmap.getHeight());
 								if (finalHeight!=0 && finalHeight != bitmap.getHeight()) {
@@ -177,6 +393,8 @@ public class PictureJobList implements Runnable {
 								if (target.getStorageTransform()!=null)
 									bitmap = target.getStorageTransform().transformBitmapForStorage(bitmap);
 
+								if (mCache.getBitmapCache()!=null)
+									mCache.getBitmapCache().put(keyToBitmapCacheKey(target, url), bitmap);
 								displayDrawable = new BitmapDrawable(mCache.getContext().getResources(), bitmap);
 							}
 						}
@@ -195,22 +413,25 @@ public class PictureJobList implements Runnable {
 				}
 
 				if (DEBUG_BITMAP_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, this+" target:"+target+" fileInCache:"+fileInCache+" bitmap:"+targetBitmaps.get(target.key));
-				mTargetJobs.put(target, Boolean.TRUE); // this job is finished
+				synchronized (this) {
+					if (mTargetJobs.get(target)==null)
+						mTargetJobs.put(target, Boolean.TRUE); // this job is finished
+				}
 			}
-
-			downloadedToFile = null;
 		} catch (OutOfMemoryError e) {
 			mCache.getOutOfMemoryHandler().onOutOfMemoryError(e);
 			LogManager.getLogger().w(PictureCache.LOG_TAG, "Failed to load " + url, e);
 			/*} catch (InterruptedException e) {
 			LogManager.getLogger().e(PictureCache.TAG, "Interrupted while loading " + mURL, e);*/
-		} catch (DownloadFailureException e) {
-			// do nothing
 		} catch (Throwable e) {
 			LogManager.getLogger().w(PictureCache.LOG_TAG, "exception on "+url, e);
 		} finally {
 			mAborting.set(true); // after this point new targets are not OK for this job
 			if (DEBUG_BITMAP_DOWNLOADER) LogManager.getLogger().e(PictureCache.LOG_TAG, this+" finished loading targets:"+mTargetJobs+" bitmaps:"+targetBitmaps);
+			final HashSet<PictureJob> staleShownJobs;
+			synchronized (this) {
+				staleShownJobs = new HashSet<PictureJob>(mStaleShownJobs);
+			}
 
 			UIHandler.instance.runOnUiThread(new Runnable() {
 				@Override
@@ -237,20 +458,28 @@ public class PictureJobList implements Runnable {
 								}
 
 								target.mDisplayHandler.drawBitmap(drawable, url, target.drawCookie, mCache.getBitmapCache(), false);
-							} else
+							} else if (!staleShownJobs.contains(target))
 								target.mDisplayHandler.drawErrorPicture(url, mCache.getBitmapCache());
 						}
 					}
-					mTargetJobs.clear();
+					// the jobs are kept for the DownloadManager to unregister them
 					targetBitmaps.clear();
 				}
 			});
 
-			if (mMonitor!=null)
+			if (mMonitor!=null) {
+				// before the list is finished and its jobs unregistered
+				for (PictureJob target : networkTargets)
+					mMonitor.requeueDownloadTarget(this, target);
 				mMonitor.onJobFinishedWithNewBitmaps(this, targetNewBitmaps);
+			}
 
-			if (downloadedToFile!=null)
-				downloadedToFile.delete();
+			if (mDownloadedFile!=null)
+				mDownloadedFile.delete();
+			if (mPartialDownload!=null) {
+				mPartialDownload.release();
+				mPartialDownload = null;
+			}
 		}
 	}
 
@@ -260,6 +489,16 @@ public class PictureJobList implements Runnable {
 	 * @return {@code false} if the job was not added to this target (if the download is aborting)
 	 */
 	synchronized boolean addJob(PictureJob job) {
+		return addJob(job, false);
+	}
+
+	/**
+	 * Add a handler for when the URL is downloaded and start the download+processing if it wasn't started
+	 * @param job
+	 * @param staleShown {@code true} if the job already displays an expired version, it's only drawn again with a new version
+	 * @return {@code false} if the job was not added to this target (if the download is aborting)
+	 */
+	synchronized boolean addJob(PictureJob job, boolean staleShown) {
 		if (BuildConfig.DEBUG && !job.url.equals(url)) throw new InvalidParameterException(this+" wrong job URL "+job);
 
 		if (mAborting.get()) {
@@ -280,9 +519,24 @@ public class PictureJobList implements Runnable {
 		else if (mLifeSpan.compare(job.mLifeSpan)<0)
 			mLifeSpan = job.mLifeSpan;
 
+		if (mTimeToLive < 0 || job.mTimeToLive == 0)
+			mTimeToLive = job.mTimeToLive;
+		else if (mTimeToLive != 0 && mTimeToLive < job.mTimeToLive)
+			mTimeToLive = job.mTimeToLive;
+
+		if (staleShown)
+			mStaleShownJobs.add(job);
+		else
+			mStaleShownJobs.remove(job);
+
 		Boolean runningState = mTargetJobs.get(job);
 		if (runningState!=Boolean.TRUE) {
-			mTargetJobs.put(job, null); // mark as pending for processing
+			boolean wasPending = mTargetJobs.containsKey(job) && runningState==null;
+			if (!wasPending) {
+				mTargetJobs.put(job, null); // mark as pending for processing
+				mPendingJobs.add(job);
+				mLiveTargets.incrementAndGet();
+			}
 		} else {
 			if (DEBUG_BITMAP_DOWNLOADER) LogManager.getLogger().d(PictureCache.LOG_TAG, this+" job "+job+" already pending");
 		}
@@ -290,6 +544,74 @@ public class PictureJobList implements Runnable {
 		return true;
 	}
 
+	/**
+	 * The list could not be scheduled, display the error picture in all the targets
+	 */
+	void onRejected() {
+		mAborting.set(true);
+		UIHandler.instance.runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (PictureJobList.this) {
+					for (Entry<PictureJob, Boolean> targetEntry : mTargetJobs.entrySet()) {
+						if (targetEntry.getValue()!=Boolean.FALSE && !mStaleShownJobs.contains(targetEntry.getKey()))
+							targetEntry.getKey().mDisplayHandler.drawErrorPicture(url, mCache.getBitmapCache());
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Abort the list if none of its targets need it anymore and close its running download in the background
+	 * @return {@code true} if the list was cancelled, new jobs can't be added to it anymore
+	 */
+	boolean cancelIfUnused() {
+		synchronized (this) {
+			if (mAborting.get() || mLiveTargets.get() > 0)
+				return false;
+			mAborting.set(true);
+		}
+		if (DEBUG_BITMAP_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, this+" cancelled");
+
+		// the blocked read fails right away instead of finishing the current chunk
+		final URLConnection connection = mDownloadConnection;
+		final InputStream is = mDownloadStream;
+		if (connection instanceof HttpURLConnection || null!=is) {
+			sConnectionCloser.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (connection instanceof HttpURLConnection)
+						((HttpURLConnection) connection).disconnect();
+					if (null!=is) {
+						try {
+							is.close();
+						} catch (IOException e) {
+							// the download is failing anyway
+						} catch (RuntimeException e) {
+							// the download is failing anyway
+						}
+					}
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * @return {@code true} if the list was aborted, new jobs can't be added to it anymore
+	 */
+	boolean isAborting() {
+		return mAborting.get();
+	}
+
+	/**
+	 * @return {@code true} if the list was aborted or none of its targets need it anymore, its download failures don't come from the URL
+	 */
+	private boolean isUnused() {
+		return mAborting.get() || mLiveTargets.get() <= 0;
+	}
+
 	/**
 	 * Remove a render job from the list of targets
 	 * @param job
@@ -300,7 +622,8 @@ public class PictureJobList implements Runnable {
 
 		if (DEBUG_BITMAP_DOWNLOADER) LogManager.getLogger().e(PictureCache.LOG_TAG, this+" removeJob "+job);
 		if (mTargetJobs.containsKey(job)) {
-			mTargetJobs.put(job, Boolean.FALSE); // mark as invalid
+			if (mTargetJobs.put(job, Boolean.FALSE)!=Boolean.FALSE) // mark as invalid
+				mLiveTargets.decrementAndGet();
 			deleted = true;
 		}
 		/*for (int i=0;i<mTargetJobs.size();++i) {
@@ -325,13 +648,7 @@ public class PictureJobList implements Runnable {
 		if (srcHeight <= 0) {
 			LogManager.getLogger().i(PictureCache.LOG_TAG, "could not get the dimension for " + url+" use raw decoding");
 		} else {
-			int finalHeight = key.getBitmapHeight(srcWidth, srcHeight);
-
-			if (finalHeight>0 && srcHeight > finalHeight*2) {
-				//LogManager.getLogger().e(PictureCache.TAG, " Picture scaling by: " + scale +" from Height:" + opts.outHeight + " to "+finalHeight+" for "+mURL);
-				opts.inSampleSize = (int) FloatMath.floor((float)srcHeight / finalHeight);
-			}
-			else opts.inSampleSize = 1;
+			opts.inSampleSize = getSampleSize(srcWidth, srcHeight, key);
 		}
 		//opts.inInputShareable = true;
 		//opts.inPurgeable = true;
@@ -339,6 +656,48 @@ public class PictureJobList implements Runnable {
 		return opts;
 	}
 
+	private static int getSampleSize(int srcWidth, int srcHeight, CacheKey key) {
+		if (srcHeight <= 0)
+			return 1;
+		int finalHeight = key.getBitmapHeight(srcWidth, srcHeight);
+		if (finalHeight>0 && srcHeight > finalHeight*2) {
+			//LogManager.getLogger().e(PictureCache.TAG, " Picture scaling by: " + scale +" from Height:" + opts.outHeight + " to "+finalHeight+" for "+mURL);
+			return (int) FloatMath.floor((float)srcHeight / finalHeight);
+		}
+		return 1;
+	}
+
+	/**
+	 * @return the sample size to decode the source picture for all the pending targets
+	 */
+	private synchronized int getPendingSampleSize(int srcWidth, int srcHeight) {
+		int sampleSize = Integer.MAX_VALUE;
+		for (PictureJob pendingJob : mPendingJobs) {
+			if (mTargetJobs.get(pendingJob)==null)
+				sampleSize = Math.min(sampleSize, getSampleSize(srcWidth, srcHeight, pendingJob.key));
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * @return {@code true} if the job already displays an expired version of the picture
+	 */
+	private synchronized boolean isStaleShown(PictureJob job) {
+		return mStaleShownJobs.contains(job);
+	}
+
+	/**
+	 * @return the next job to process or {@code null} if there are none
+	 */
+	private synchronized PictureJob nextPendingJob() {
+		PictureJob job;
+		while (null!=(job = mPendingJobs.poll())) {
+			if (mTargetJobs.get(job)==null) // this job has not been processed yet
+				return job;
+		}
+		return null;
+	}
+
 	private static class AbortDownload extends DownloadFailureException {
 		private static final long serialVersionUID = 5568245153235248681L;
 	}
@@ -346,21 +705,62 @@ public class PictureJobList implements Runnable {
 	/**
 	 * @throws AbortDownload if we should not download or decode any further
 	 */
-	private synchronized void checkAbort() throws AbortDownload {
-		for (Entry<PictureJob, Boolean> targetEntry : mTargetJobs.entrySet()) {
-			if (targetEntry.getValue()!=Boolean.FALSE) {
-				// there's still a valid job pending to be processed or rendered
+	private void checkAbort() throws AbortDownload {
+		if (mLiveTargets.get() > 0)
+			return; // there's still a valid job pending to be processed or rendered
+		synchronized (this) {
+			// a job may have been added in the meantime
+			if (mLiveTargets.get() > 0)
 				return;
-			}
+			if (DEBUG_BITMAP_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, this+ " no more targets, aborting");
+			mAborting.set(true);
 		}
-		if (DEBUG_BITMAP_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, this+ " no more targets, aborting");
-		mAborting.set(true);
 		throw new AbortDownload();
 	}
 
-	private void downloadInTempFile(File tmpFile) throws DownloadFailureException {
+	/**
+	 * @param connection connection that failed to give the content
+	 * @return {@link FailureClass#NOT_FOUND} for the HTTP client errors that won't change by trying again, {@code null} to use the cause of the failure
+	 */
+	private static FailureClass getFailureClass(URLConnection connection) {
+		if (connection instanceof HttpURLConnection) {
+			try {
+				final int responseCode = ((HttpURLConnection) connection).getResponseCode();
+				if (responseCode==HttpURLConnection.HTTP_CLIENT_TIMEOUT || responseCode==416 || responseCode==429)
+					return FailureClass.NETWORK; // timeout, outdated range or too many requests
+				if (responseCode >= 400 && responseCode < 500)
+					return FailureClass.NOT_FOUND;
+			} catch (IOException e) {
+				// no response, use the cause
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the expired items of the pending targets that were stored with the same validators
+	 */
+	private synchronized List<CacheKey> getRevalidatedKeys(CacheItem validators, long now) {
+		List<CacheKey> keys = new ArrayList<CacheKey>();
+		for (PictureJob pendingJob : mPendingJobs) {
+			CacheItem item = mCache.get(pendingJob.key);
+			if (null!=item && item.isExpired(now) && TextUtils.equals(item.eTag, validators.eTag) && item.lastModified==validators.lastModified)
+				keys.add(pendingJob.key);
+		}
+		return keys;
+	}
+
+	/**
+	 * @param tmpFile file to write the content to
+	 * @param validators cached item to revalidate with a conditional request, {@code null} to always get the content
+	 * @param partial resumable download stored in {@code tmpFile}, {@code null} to always download from the start
+	 * @return {@code false} if the server answered the cached item has not been modified, nothing is written
+	 */
+	private boolean downloadInTempFile(File tmpFile, CacheItem validators, PartialDownload partial) throws DownloadFailureException {
 		//LogManager.getLogger().i(PictureCache.TAG, "loading "+mURL);
+		final long downloadStart = System.currentTimeMillis();
 		InputStream is = null;
+		boolean append = false;
 		try {
 			try {
 				is = mCache.getContext().getContentResolver().openInputStream(Uri.parse(url));
@@ -372,17 +772,48 @@ public class PictureJobList implements Runnable {
 				else {
 					URL url = new URL(this.url);
 					URLConnection conn = url.openConnection();
+					mDownloadConnection = conn;
 					conn.setConnectTimeout(CONNECT_TIMEOUT_DL);
 					conn.setUseCaches(false);
 					conn.setRequestProperty("Accept-Encoding", "identity");
+					if (null!=validators && conn instanceof HttpURLConnection)
+						HttpCacheHeaders.setConditions((HttpURLConnection) conn, validators.eTag, validators.lastModified);
+					final String resumeValidator = null==validators && null!=partial && conn instanceof HttpURLConnection ? partial.getResumeValidator() : null;
+					final long resumeOffset = tmpFile.length();
+					if (null!=resumeValidator) {
+						conn.setRequestProperty("Range", "bytes="+resumeOffset+'-');
+						conn.setRequestProperty("If-Range", resumeValidator);
+					}
 					//LogManager.getLogger().e(PictureCache.TAG, conn.getContentEncoding()+" encoding for "+mURL);
 					checkAbort();
 					try {
 						is = conn.getInputStream();
 					} catch (FileNotFoundException ee) {
-						throw new DownloadFailureException("cache URL not found "+url, e);
+						throw new DownloadFailureException("cache URL not found "+url, ee);
 					} catch (Exception ee) {
-						throw new DownloadFailureException("cache error opening "+url, e);
+						if (null!=resumeValidator)
+							partial.delete(); // the range may not be satisfiable anymore, start from scratch next time
+						throw new DownloadFailureException(getFailureClass(conn), "cache error opening "+url, ee);
+					}
+					if (conn instanceof HttpURLConnection) {
+						HttpURLConnection httpConn = (HttpURLConnection) conn;
+						mResponseHeaders = HttpCacheHeaders.fromResponse(httpConn);
+						if (httpConn.getResponseCode()==HttpURLConnection.HTTP_NOT_MODIFIED) {
+							if (DEBUG_BITMAP_DOWNLOADER) LogManager.getLogger().i(PictureCache.LOG_TAG, this+" not modified "+mResponseHeaders);
+							mCache.getFailedDownloads().clear(this.url);
+							return false;
+						}
+						if (null!=partial) {
+							// the server may ignore the range and send the whole content
+							append = null!=resumeValidator && httpConn.getResponseCode()==HttpURLConnection.HTTP_PARTIAL;
+							if (append && PartialDownload.getRangeStart(httpConn.getHeaderField("Content-Range"))!=resumeOffset) {
+								// appending a range that doesn't start at the end of the file would corrupt it
+								partial.delete();
+								throw new DownloadFailureException(FailureClass.NETWORK, "unexpected range "+httpConn.getHeaderField("Content-Range")+" for "+url, null);
+							}
+							if (DEBUG_BITMAP_DOWNLOADER && append) LogManager.getLogger().i(PictureCache.LOG_TAG, this+" resume download at "+resumeOffset);
+							partial.setResumeValidator(PartialDownload.getRangeValidator(httpConn));
+						}
 					}
 				}
 			}
@@ -390,16 +821,21 @@ public class PictureJobList implements Runnable {
 			if (is==null) {
 				throw new DownloadFailureException("impossible to get a stream for "+url);
 			}
+			mDownloadStream = is;
+			if (null!=partial && null==mResponseHeaders)
+				partial.setResumeValidator(null); // only HTTP downloads can be resumed
 
 			checkAbort();
 			// store the stream in a temp file
 			BufferedInputStream bis = new BufferedInputStream(is);
-			FileOutputStream out = new FileOutputStream(tmpFile);
+			FileOutputStream out = new FileOutputStream(tmpFile, append);
+			long written = 0;
 			try {
 				byte[] data = new byte[1422];
 				int readAmount = is.read(data);
 				while (readAmount >= 0) {
 					out.write(data, 0, readAmount);
+					written += readAmount;
 					checkAbort();
 					readAmount = is.read(data);
 				}
@@ -407,7 +843,11 @@ public class PictureJobList implements Runnable {
 				bis.close();
 				out.flush();
 				out.close();
+				mCache.onTempFileWritten(written);
 			}
+			mCache.getHostStatistics().recordDownload(url, System.currentTimeMillis() - downloadStart);
+			mCache.getFailedDownloads().clear(url);
+			return true;
 
 			//LogManager.getLogger().v(" got direct:"+bmp);
 		} catch (MalformedURLException e) {
@@ -420,6 +860,8 @@ public class PictureJobList implements Runnable {
 		} catch (IOException e) {
 			throw new DownloadFailureException("Could not read " + url, e);
 		} finally {
+			mDownloadConnection = null;
+			mDownloadStream = null;
 			try {
 				if (is!=null)
 					is.close();
@@ -441,12 +883,16 @@ public class PictureJobList implements Runnable {
 
 	private static String resourcePath;
 
-	private synchronized Drawable loadResourceDrawable(String url) {
+	private synchronized boolean isResourceUrl(String url) {
 		if (resourcePath==null)
 			resourcePath = "android.resource://"+mCache.getContext().getPackageName()+"/";
-		if (!url.startsWith(resourcePath))
+		return url.startsWith(resourcePath);
+	}
+
+	private synchronized Drawable loadResourceDrawable(String url) {
+		if (!isResourceUrl(url))
 			return null;
 		return mCache.getContext().getResources().getDrawable(Integer.valueOf(url.substring(resourcePath.length())));
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,188 @@
+package com.levelup.picturecache.internal;
+
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+import com.levelup.picturecache.LifeSpan;
+
+/**
+ * {@link EvictionPolicy} evicting the items with the lowest priority first
+ * <p>
+ * Each {@link LifeSpan} uses an indexed binary heap so getting the next victim is O(1) and adding/removing an item is O(log n)
+ */
+public abstract class PriorityEvictionPolicy implements EvictionPolicy {
+
+	private static final class Node implements Entry<CacheKey, CacheItem> {
+		final CacheKey key;
+		final CacheItem item;
+		final Heap heap;
+		final long priority;
+		int heapIndex;
+
+		Node(CacheKey key, CacheItem item, Heap heap, long priority) {
+			this.key = key;
+			this.item = item;
+			this.heap = heap;
+			this.priority = priority;
+		}
+
+		@Override
+		public CacheKey getKey() {
+			return key;
+		}
+
+		@Override
+		public CacheItem getValue() {
+			return item;
+		}
+
+		@Override
+		public CacheItem setValue(CacheItem value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String toString() {
+			return key+"="+item;
+		}
+	}
+
+	private static final class Heap {
+		private Node[] nodes = new Node[16];
+		private int size;
+
+		Node peek() {
+			return size==0 ? null : nodes[0];
+		}
+
+		void add(Node node) {
+			if (size == nodes.length) {
+				Node[] bigger = new Node[size * 2];
+				System.arraycopy(nodes, 0, bigger, 0, size);
+				nodes = bigger;
+			}
+			node.heapIndex = size;
+			nodes[size++] = node;
+			siftUp(node.heapIndex);
+		}
+
+		void remove(Node node) {
+			final int index = node.heapIndex;
+			final Node last = nodes[--size];
+			nodes[size] = null;
+			if (last != node) {
+				nodes[index] = last;
+				last.heapIndex = index;
+				siftDown(index);
+				siftUp(last.heapIndex);
+			}
+		}
+
+		void clear() {
+			nodes = new Node[16];
+			size = 0;
+		}
+
+		private void siftUp(int index) {
+			final Node node = nodes[index];
+			while (index > 0) {
+				int parent = (index - 1) >>> 1;
+				if (nodes[parent].priority <= node.priority)
+					break;
+				nodes[index] = nodes[parent];
+				nodes[index].heapIndex = index;
+				index = parent;
+			}
+			nodes[index] = node;
+			node.heapIndex = index;
+		}
+
+		private void siftDown(int index) {
+			final Node node = nodes[index];
+			final int half = size >>> 1;
+			while (index < half) {
+				int child = 2 * index + 1;
+				int right = child + 1;
+				if (right < size && nodes[right].priority < nodes[child].priority)
+					child = right;
+				if (node.priority <= nodes[child].priority)
+					break;
+				nodes[index] = nodes[child];
+				nodes[index].heapIndex = index;
+				index = child;
+			}
+			nodes[index] = node;
+			node.heapIndex = index;
+		}
+	}
+
+	private final HashMap<CacheKey, Node> mNodes = new HashMap<CacheKey, Node>();
+	private final Heap[] mHeaps;
+
+	protected PriorityEvictionPolicy() {
+		mHeaps = new Heap[LifeSpan.values().length];
+		for (int i=0; i<mHeaps.length; ++i)
+			mHeaps[i] = new Heap();
+	}
+
+	/**
+	 * @param lifeSpan the {@link LifeSpan} of the item
+	 * @param key key of the item in the cache
+	 * @param item the item being added
+	 * @return the priority of the item, items with the lowest priority are evicted first
+	 */
+	protected abstract long getPriority(LifeSpan lifeSpan, CacheKey key, CacheItem item);
+
+	/**
+	 * Called when an item is evicted with {@link #pollVictim(LifeSpan)}
+	 * @param lifeSpan the {@link LifeSpan} of the item
+	 * @param priority the priority the item had
+	 */
+	protected void onEvicted(LifeSpan lifeSpan, long priority) {
+	}
+
+	@Override
+	public void add(CacheKey key, CacheItem item) {
+		remove(key);
+		final LifeSpan lifeSpan = item.getLifeSpan();
+		if (null==lifeSpan)
+			return;
+		Node node = new Node(key, item, mHeaps[lifeSpan.ordinal()], getPriority(lifeSpan, key, item));
+		mNodes.put(key, node);
+		node.heap.add(node);
+	}
+
+	@Override
+	public void remove(CacheKey key) {
+		Node node = mNodes.remove(key);
+		if (null!=node)
+			node.heap.remove(node);
+	}
+
+	@Override
+	public Entry<CacheKey, CacheItem> peekVictim(LifeSpan lifeSpan) {
+		return mHeaps[lifeSpan.ordinal()].peek();
+	}
+
+	@Override
+	public Entry<CacheKey, CacheItem> pollVictim(LifeSpan lifeSpan) {
+		Node node = mHeaps[lifeSpan.ordinal()].peek();
+		if (null!=node) {
+			mNodes.remove(node.key);
+			node.heap.remove(node);
+			onEvicted(lifeSpan, node.priority);
+		}
+		return node;
+	}
+
+	public int size() {
+		return mNodes.size();
+	}
+
+	@Override
+	public void clear() {
+		mNodes.clear();
+		for (Heap heap : mHeaps)
+			heap.clear();
+	}
+}
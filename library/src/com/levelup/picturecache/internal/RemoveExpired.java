@@ -1,7 +1,11 @@
 package com.levelup.picturecache.internal;
 
 import java.io.File;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import st.gaw.db.AsynchronousDbHelper;
 import st.gaw.db.AsynchronousDbOperation;
@@ -13,14 +17,60 @@ import com.levelup.picturecache.PictureCache;
 
 public class RemoveExpired implements AsynchronousDbOperation<MapEntry<CacheKey,CacheItem>> {
 
+	/**
+	 * Background thread deleting the evicted files, so the database thread and the cache lock are not held during the unlinks
+	 */
+	private static final ThreadPoolExecutor sFileRemover = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()) {
+		@Override
+		protected void beforeExecute(Thread t, Runnable r) {
+			super.beforeExecute(t, r);
+			t.setName("PictureCache-Purge");
+			t.setPriority(Thread.MIN_PRIORITY);
+		}
+	};
+
+	/**
+	 * percentage of {@link PictureCache#getCacheMaxSize(LifeSpan)} above which a {@link LifeSpan} is purged
+	 */
+	public static final int HIGH_WATERMARK = 90;
+
+	/**
+	 * percentage of {@link PictureCache#getCacheMaxSize(LifeSpan)} a purged {@link LifeSpan} is brought back to
+	 * <p>the gap with {@link #HIGH_WATERMARK} leaves room for many new items before the next purge</p>
+	 */
+	public static final int LOW_WATERMARK = 75;
+
 	private final LifeSpan lifeSpan;
+	private final long bytesToFree;
 
 	public RemoveExpired() {
-		this.lifeSpan = null;
+		this(null, 0);
 	}
 
 	public RemoveExpired(LifeSpan cacheType) {
+		this(cacheType, 0);
+	}
+
+	/**
+	 * @param bytesToFree amount of storage to release on the cache volume on top of the watermark purges, evicting the shortest {@link LifeSpan} first
+	 */
+	public RemoveExpired(long bytesToFree) {
+		this(null, bytesToFree);
+	}
+
+	private RemoveExpired(LifeSpan cacheType, long bytesToFree) {
 		this.lifeSpan = cacheType;
+		this.bytesToFree = bytesToFree;
+	}
+
+	/**
+	 * @param cache the cache to check
+	 * @param lifeSpan type of {@link LifeSpan}
+	 * @return {@code true} if the {@link LifeSpan} has reached its {@link #HIGH_WATERMARK}
+	 */
+	public static boolean needsPurge(PictureCache cache, LifeSpan lifeSpan) {
+		final long maxSize = cache.getCacheMaxSize(lifeSpan);
+		return maxSize != 0 && cache.getCacheSize(lifeSpan) >= maxSize * HIGH_WATERMARK / 100;
 	}
 
 	@Override
@@ -32,40 +82,68 @@ public class RemoveExpired implements AsynchronousDbOperation<MapEntry<CacheKey,
 			for (LifeSpan lifeSpan : LifeSpan.values())
 				makeRoom(cache, lifeSpan);
 		}
+
+		// the partial downloads are aged out and released first when space is needed
+		long remaining = bytesToFree;
+		remaining -= PartialDownload.sweep(PartialDownload.getFolder(cache.getAvailaibleTempDir()), System.currentTimeMillis(), remaining);
+		for (LifeSpan lifeSpan : LifeSpan.values()) {
+			if (remaining <= 0)
+				break;
+			remaining -= purge(cache, lifeSpan, Math.max(0, cache.getCacheSize(lifeSpan) - remaining));
+		}
+		if (remaining > 0)
+			LogManager.getLogger().w(PictureCache.LOG_TAG, "could not free "+remaining+" bytes on the cache volume");
 	}
 
 	private static void makeRoom(PictureCache cache, LifeSpan lifeSpan) {
 		if (PictureCache.DEBUG_CACHE) LogManager.getLogger().i(PictureCache.LOG_TAG, "start makeRoom for "+lifeSpan);
-		try {
-			long TotalSize = cache.getCacheSize(lifeSpan);
-			int MaxSize = cache.getCacheMaxSize(lifeSpan);
-			if (MaxSize != 0 && TotalSize > MaxSize) {
-				// make room in the DB/cache for this new element
-				while (TotalSize > MaxSize) {
-					//if (type != k.getValue().type) continue;
-					//long deleted = 0;
-					Entry<CacheKey, CacheItem> entry = cache.getCacheOldestEntry(lifeSpan);
-					if (entry == null)
-						break;
-
-					if (PictureCache.DEBUG_CACHE) LogManager.getLogger().i(PictureCache.LOG_TAG, "remove "+entry+" from the cache for "+lifeSpan);
-					CacheItem item = cache.remove(entry.getKey());
-					if (item != null) {
-						File f = item.path;
-						if (f != null && f.exists()) {
-							long fSize = f.length();
-							if (f.delete()) {
-								TotalSize -= fSize;
-								//deleted += fSize;
-							}
-						}
-					}
-					//LogManager.logger.d(TAG, "makeroom");
-				}
-			}
-		} catch (NullPointerException e) {
-			LogManager.getLogger().w(PictureCache.LOG_TAG, "can't make room for type:"+lifeSpan,e);
+		if (needsPurge(cache, lifeSpan)) {
+			// make room in the DB/cache for new elements
+			purge(cache, lifeSpan, (long) cache.getCacheMaxSize(lifeSpan) * LOW_WATERMARK / 100);
 		}
 		if (PictureCache.DEBUG_CACHE) LogManager.getLogger().i(PictureCache.LOG_TAG, "finished makeRoom for "+lifeSpan);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return the amount of bytes released
+	 */
+	private static long purge(PictureCache cache, LifeSpan lifeSpan, long targetSize) {
+		List<Entry<CacheKey, CacheItem>> victims = cache.evictEntries(lifeSpan, targetSize);
+		if (victims.isEmpty())
+			return 0;
+
+		if (PictureCache.DEBUG_CACHE) LogManager.getLogger().i(PictureCache.LOG_TAG, "remove "+victims.size()+" items from the cache for "+lifeSpan);
+		removeEntries(cache, victims);
+
+		long freed = 0;
+		for (Entry<CacheKey, CacheItem> victim : victims)
+			freed += victim.getValue().fileSize;
+		return freed;
+	}
+
+	/**
+	 * Remove items already removed from memory from the database and delete their files in the background
+	 * <p>Must be called from an operation running on the database thread</p>
+	 */
+	public static void removeEntries(PictureCache cache, List<Entry<CacheKey, CacheItem>> victims) {
+		cache.removeFromDatabase(victims);
+		sFileRemover.execute(new RemoveFiles(cache, victims));
+	}
+
+	private static class RemoveFiles implements Runnable {
+		private final PictureCache cache;
+		private final List<Entry<CacheKey, CacheItem>> victims;
+
+		RemoveFiles(PictureCache cache, List<Entry<CacheKey, CacheItem>> victims) {
+			this.cache = cache;
+			this.victims = victims;
+		}
+
+		@Override
+		public void run() {
+			// the same key may have been stored again in the same file since it was evicted
+			for (File f : cache.takeEvictedFiles(victims))
+				f.delete();
+		}
+	}
+}
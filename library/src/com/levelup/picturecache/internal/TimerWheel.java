@@ -0,0 +1,143 @@
+package com.levelup.picturecache.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Hierarchical timer wheel tracking the expiration date of the cache items
+ * <p>
+ * Each level is a ring of buckets covering 64 times the span of a bucket of the previous level. Scheduling and
+ * cancelling an item is O(1), advancing the time only looks at the buckets that went by, items of the upper levels
+ * cascade to the lower levels as their expiration date gets closer.
+ * <p>
+ * Not thread safe, the {@link com.levelup.picturecache.PictureCache PictureCache} only uses it under the lock on its data
+ */
+public class TimerWheel {
+
+	private static final int BUCKET_BITS = 6;
+	private static final int BUCKETS = 1 << BUCKET_BITS;
+	private static final int BUCKET_MASK = BUCKETS - 1;
+
+	/**
+	 * span of a bucket for each level as a power of 2 in milliseconds: ~1s, ~65s, ~70mn, ~3 days
+	 * <p>the last level covers ~6 months, items expiring later wrap around and are rescheduled when their bucket is reached</p>
+	 */
+	private static final int[] SHIFT = { 10, 10 + BUCKET_BITS, 10 + 2*BUCKET_BITS, 10 + 3*BUCKET_BITS };
+
+	private static final class Node {
+		final CacheKey key;
+		final long expirationDate;
+		Node prev, next;
+
+		Node(CacheKey key, long expirationDate) {
+			this.key = key;
+			this.expirationDate = expirationDate;
+		}
+	}
+
+	/** circular lists with a sentinel node for each bucket of each level */
+	private final Node[][] mBuckets;
+	private final HashMap<CacheKey, Node> mNodes = new HashMap<CacheKey, Node>();
+	private long mCurrentTime;
+
+	public TimerWheel(long now) {
+		mCurrentTime = now;
+		mBuckets = new Node[SHIFT.length][BUCKETS];
+		for (Node[] level : mBuckets) {
+			for (int i=0; i<level.length; ++i) {
+				Node sentinel = new Node(null, 0);
+				sentinel.prev = sentinel.next = sentinel;
+				level[i] = sentinel;
+			}
+		}
+	}
+
+	/**
+	 * Track the expiration date of an item, replacing the previous date for this key if there was one
+	 * @param key key of the item in the cache
+	 * @param expirationDate date after which the item is expired, in milliseconds
+	 */
+	public void schedule(CacheKey key, long expirationDate) {
+		cancel(key);
+		Node node = new Node(key, expirationDate);
+		mNodes.put(key, node);
+		link(node);
+	}
+
+	/**
+	 * Stop tracking the expiration date of an item, does nothing if the key is not tracked
+	 * @param key key of the item in the cache
+	 */
+	public void cancel(CacheKey key) {
+		Node node = mNodes.remove(key);
+		if (null!=node)
+			unlink(node);
+	}
+
+	/**
+	 * Move the time forward and stop tracking the items that expired
+	 * @param now the current date in milliseconds
+	 * @return the keys of the expired items or {@code null} if there are none
+	 */
+	public List<CacheKey> advance(long now) {
+		final long previousTime = mCurrentTime;
+		if ((now >>> SHIFT[0]) <= (previousTime >>> SHIFT[0]))
+			return null; // still in the same bucket
+		mCurrentTime = now;
+
+		List<CacheKey> expired = null;
+		for (int level=0; level<SHIFT.length; ++level) {
+			final long previousTicks = previousTime >>> SHIFT[level];
+			final long delta = (now >>> SHIFT[level]) - previousTicks;
+			if (delta <= 0)
+				break;
+			final int count = delta >= BUCKETS ? BUCKETS : (int) delta + 1;
+			for (int i=0; i<count; ++i) {
+				Node sentinel = mBuckets[level][(int) ((previousTicks + i) & BUCKET_MASK)];
+				Node node = sentinel.next;
+				sentinel.prev = sentinel.next = sentinel;
+				while (node != sentinel) {
+					Node next = node.next;
+					if (node.expirationDate <= now) {
+						mNodes.remove(node.key);
+						if (null==expired)
+							expired = new ArrayList<CacheKey>();
+						expired.add(node.key);
+					} else {
+						link(node); // cascade to a lower level
+					}
+					node = next;
+				}
+			}
+		}
+		return expired;
+	}
+
+	public void clear() {
+		mNodes.clear();
+		for (Node[] level : mBuckets) {
+			for (Node sentinel : level)
+				sentinel.prev = sentinel.next = sentinel;
+		}
+	}
+
+	private void link(Node node) {
+		final long delay = node.expirationDate - mCurrentTime;
+		int level = 0;
+		while (level < SHIFT.length - 1 && delay >= (1L << (SHIFT[level] + BUCKET_BITS)))
+			++level;
+		final long ticks = Math.max(node.expirationDate, mCurrentTime) >>> SHIFT[level];
+		Node sentinel = mBuckets[level][(int) (ticks & BUCKET_MASK)];
+		node.next = sentinel;
+		node.prev = sentinel.prev;
+		sentinel.prev.next = node;
+		sentinel.prev = node;
+	}
+
+	private static void unlink(Node node) {
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = node.next = null;
+	}
+}
@@ -16,6 +16,7 @@ import android.widget.ImageView;
 import com.levelup.picturecache.BuildConfig;
 import com.levelup.picturecache.LogManager;
 import com.levelup.picturecache.PictureCache;
+import com.levelup.picturecache.PictureJobConcurrency;
 import com.levelup.picturecache.PictureLoaderHandler;
 import com.levelup.picturecache.UIHandler;
 import com.levelup.picturecache.loaders.internal.DrawType;
@@ -31,7 +32,7 @@ import com.levelup.picturecache.transforms.storage.StorageTransform;
  * <p>You will likely want to override {@link #displayLoadedDrawable(Drawable)}, {@link #displayDefaultView(BitmapLruCache)} or {@link #displayErrorView(BitmapLruCache)}</p>
  * @see {@link ViewLoaderDefaultResource} and {@link ViewLoaderDefaultDrawable} 
  */
-public abstract class ViewLoader<T extends View> extends PictureLoaderHandler {
+public abstract class ViewLoader<T extends View> extends PictureLoaderHandler implements PictureJobConcurrency.SizeAware {
 	private final ViewReference<T> view;
 
 	private static final long MAX_SIZE_IN_UI_THREAD = 19000;
@@ -186,7 +187,12 @@ public abstract class ViewLoader<T extends View> extends PictureLoaderHandler {
 
 	@Override
 	public boolean canDirectLoad(File file) {
-		return !UIHandler.isUIThread() || file.length() < MAX_SIZE_IN_UI_THREAD;
+		return canDirectLoad(file, file.length());
+	}
+
+	@Override
+	public boolean canDirectLoad(File file, long fileSize) {
+		return !UIHandler.isUIThread() || fileSize < MAX_SIZE_IN_UI_THREAD;
 	}
 
 	public static Bitmap drawableToBitmap(Drawable drawable) {
@@ -206,4 +212,4 @@ public abstract class ViewLoader<T extends View> extends PictureLoaderHandler {
 
 		return bitmap;
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,154 @@
+package com.levelup.picturecache.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+
+import com.levelup.picturecache.LifeSpan;
+import com.levelup.picturecache.PictureCache;
+import com.levelup.picturecache.PictureJob;
+import com.levelup.picturecache.RetryPolicy;
+import com.levelup.picturecache.StorageType;
+import com.levelup.picturecache.loaders.PrecacheImageLoader;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Loads pictures in a {@link PictureCache} of its own from a local {@link MockWebServer}
+ */
+public abstract class DownloadTestCase extends AndroidTestCase {
+
+	/** how long to wait for the cache to load a picture, in milliseconds */
+	private static final long LOAD_TIMEOUT = 10000;
+
+	protected MockWebServer server;
+	protected PictureCache cache;
+
+	private static class TestPictureCache extends PictureCache {
+		TestPictureCache(Context context, String folderName) {
+			super(context, null, null, 0, folderName);
+		}
+
+		@Override
+		public int getCacheMaxSize(LifeSpan lifeSpan) {
+			return 4 * 1024 * 1024;
+		}
+
+		@Override
+		protected String getOldPicUUID(String uuid, String URL) {
+			return null;
+		}
+
+		@Override
+		protected String getAppName() {
+			return null;
+		}
+	}
+
+	/**
+	 * Check on a cached item
+	 */
+	protected interface ItemCondition {
+		boolean isMet(CacheItem item);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new MockWebServer();
+		server.play();
+
+		// a new folder and database for each test
+		cache = new TestPictureCache(getContext(), "test_"+getClass().getSimpleName()+'_'+System.currentTimeMillis());
+		// the retried downloads don't make the tests wait
+		cache.setRetryPolicy(new RetryPolicy(1, 10, 10));
+		cache.waitForDataLoaded();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.shutdown();
+		cache.clear();
+		cache.release();
+		super.tearDown();
+	}
+
+	/**
+	 * @param path path of the picture on the server
+	 * @return a job loading the picture in the cache without displaying it
+	 */
+	protected PictureJob newJob(String path) {
+		// a new loader each time, a loader doesn't load the URL it's already loading
+		PrecacheImageLoader loader = new PrecacheImageLoader(null, null);
+		return new PictureJob.Builder(loader, loader)
+		.setURL(server.getUrl(path).toString())
+		.setLifeType(LifeSpan.LONGTERM)
+		.setExtensionMode(StorageType.PNG)
+		.setDimension(1000, true)
+		.build();
+	}
+
+	/**
+	 * Wait until the cached item of the key meets the condition
+	 * @return the cached item
+	 */
+	protected CacheItem waitForItem(CacheKey key, ItemCondition condition) throws InterruptedException {
+		final long timeout = System.currentTimeMillis() + LOAD_TIMEOUT;
+		while (System.currentTimeMillis() < timeout) {
+			CacheItem item = cache.get(key);
+			if (null!=item && condition.isMet(item))
+				return item;
+			Thread.sleep(20);
+		}
+		fail("timed out waiting for "+key);
+		return null;
+	}
+
+	/**
+	 * Wait until the key is stored in the cache
+	 * @return the cached item
+	 */
+	protected CacheItem waitForStored(CacheKey key) throws InterruptedException {
+		return waitForItem(key, new ItemCondition() {
+			@Override
+			public boolean isMet(CacheItem item) {
+				return item.fileSize > 0;
+			}
+		});
+	}
+
+	/**
+	 * @return a PNG file of a picture filled with the color
+	 */
+	protected static byte[] createPicture(int width, int height, int color) {
+		Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		bitmap.eraseColor(color);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+		bitmap.recycle();
+		return out.toByteArray();
+	}
+
+	protected static byte[] createPicture(int width, int height) {
+		return createPicture(width, height, Color.RED);
+	}
+
+	protected static byte[] readFile(File file) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[1024];
+			int readAmount;
+			while ((readAmount = in.read(data)) >= 0)
+				out.write(data, 0, readAmount);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,121 @@
+package com.levelup.picturecache.internal;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import android.test.AndroidTestCase;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Parsing of the Cache-Control and Expires headers into the freshness of the cached items
+ */
+public class HttpCacheHeadersTest extends AndroidTestCase {
+
+	private static final long NOW = 1400000000000L;
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	public void testNoFreshness() {
+		HttpCacheHeaders headers = new HttpCacheHeaders("", 0, null, 0, 0);
+		assertNull(headers.eTag);
+		assertFalse(headers.hasValidators());
+		assertEquals(-1, headers.maxAge);
+		assertEquals(0, headers.getFreshnessDeadline(NOW));
+	}
+
+	public void testMaxAge() {
+		HttpCacheHeaders headers = new HttpCacheHeaders("\"v1\"", 0, "public, max-age=60", 0, 0);
+		assertTrue(headers.hasValidators());
+		assertEquals(60, headers.maxAge);
+		assertEquals(NOW + 60000, headers.getFreshnessDeadline(NOW));
+
+		assertEquals(30, new HttpCacheHeaders(null, 0, "Max-Age=\"30\"", 0, 0).maxAge);
+		assertEquals(-1, new HttpCacheHeaders(null, 0, "max-age=soon", 0, 0).maxAge);
+	}
+
+	public void testMaxAgeOverridesExpires() {
+		HttpCacheHeaders headers = new HttpCacheHeaders(null, 0, "max-age=60", NOW + DAY, NOW);
+		assertEquals(NOW + 60000, headers.getFreshnessDeadline(NOW));
+	}
+
+	public void testNoCache() {
+		HttpCacheHeaders headers = new HttpCacheHeaders(null, 0, "no-cache, max-age=60", 0, 0);
+		assertTrue(headers.noCache);
+		assertFalse(headers.noStore);
+		assertEquals(NOW, headers.getFreshnessDeadline(NOW));
+	}
+
+	public void testNoStore() {
+		HttpCacheHeaders headers = new HttpCacheHeaders(null, 0, "private, No-Store", 0, 0);
+		assertTrue(headers.noStore);
+		assertFalse(headers.noCache);
+	}
+
+	public void testExpiresRelativeToDate() {
+		// the server clock is a day late, the content is fresh for 2 minutes
+		HttpCacheHeaders headers = new HttpCacheHeaders(null, 0, null, NOW - DAY + 120000, NOW - DAY);
+		assertEquals(NOW + 120000, headers.getFreshnessDeadline(NOW));
+
+		headers = new HttpCacheHeaders(null, 0, null, NOW - DAY - 1000, NOW - DAY);
+		assertEquals(NOW, headers.getFreshnessDeadline(NOW));
+	}
+
+	public void testExpiresWithoutDate() {
+		assertEquals(NOW + 5000, new HttpCacheHeaders(null, 0, null, NOW + 5000, 0).getFreshnessDeadline(NOW));
+		assertEquals(NOW, new HttpCacheHeaders(null, 0, null, NOW - 5000, 0).getFreshnessDeadline(NOW));
+	}
+
+	private static String formatDate(long date) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(date));
+	}
+
+	/**
+	 * @return the cache headers of the response
+	 */
+	private static HttpCacheHeaders getResponseHeaders(MockResponse response) throws IOException {
+		MockWebServer server = new MockWebServer();
+		server.enqueue(response);
+		server.play();
+		try {
+			HttpURLConnection connection = (HttpURLConnection) server.getUrl("/").openConnection();
+			try {
+				assertEquals(200, connection.getResponseCode());
+				return HttpCacheHeaders.fromResponse(connection);
+			} finally {
+				connection.disconnect();
+			}
+		} finally {
+			server.shutdown();
+		}
+	}
+
+	public void testFromResponse() throws IOException {
+		HttpCacheHeaders headers = getResponseHeaders(new MockResponse()
+		.addHeader("ETag", "\"v1\"")
+		.addHeader("Last-Modified", formatDate(NOW - DAY))
+		.addHeader("Cache-Control", "max-age=60")
+		.addHeader("Expires", formatDate(NOW + DAY))
+		.addHeader("Date", formatDate(NOW))
+		.setBody("picture"));
+		assertEquals("\"v1\"", headers.eTag);
+		assertEquals(NOW - DAY, headers.lastModified);
+		assertEquals(60, headers.maxAge);
+		assertEquals(NOW + DAY, headers.expires);
+		assertEquals(NOW, headers.date);
+	}
+
+	public void testInvalidExpires() throws IOException {
+		HttpCacheHeaders headers = getResponseHeaders(new MockResponse()
+		.addHeader("Expires", "0")
+		.setBody("picture"));
+		assertEquals(HttpCacheHeaders.EXPIRED, headers.expires);
+		assertEquals(NOW, headers.getFreshnessDeadline(NOW));
+	}
+}
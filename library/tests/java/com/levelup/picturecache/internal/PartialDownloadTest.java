@@ -0,0 +1,120 @@
+package com.levelup.picturecache.internal;
+
+import java.io.FileOutputStream;
+
+import com.levelup.picturecache.PictureJob;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * A download kept in the temporary folder is resumed with a Range request
+ */
+public class PartialDownloadTest extends DownloadTestCase {
+
+	private static final String ETAG = "\"v1\"";
+
+	private byte[] mPicture;
+	private int mResumeOffset;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mPicture = createPicture(20, 10);
+		mResumeOffset = mPicture.length / 2;
+	}
+
+	/**
+	 * Keep the first half of the picture as if its download had stopped
+	 */
+	private void storePartial(PictureJob job) throws Exception {
+		PartialDownload partial = new PartialDownload(cache.getAvailaibleTempDir(), job.url);
+		FileOutputStream out = new FileOutputStream(partial.file);
+		try {
+			out.write(mPicture, 0, mResumeOffset);
+		} finally {
+			out.close();
+		}
+		partial.setResumeValidator(ETAG);
+	}
+
+	/**
+	 * @return the part of the picture missing from the partial file
+	 */
+	private byte[] getRemainingData() {
+		byte[] data = new byte[mPicture.length - mResumeOffset];
+		System.arraycopy(mPicture, mResumeOffset, data, 0, data.length);
+		return data;
+	}
+
+	private void assertResumed(RecordedRequest request) {
+		assertEquals("bytes="+mResumeOffset+'-', request.getHeader("Range"));
+		assertEquals(ETAG, request.getHeader("If-Range"));
+	}
+
+	public void testResume() throws Exception {
+		final PictureJob job = newJob("/picture.png");
+		storePartial(job);
+
+		server.enqueue(new MockResponse()
+		.setResponseCode(206)
+		.addHeader("ETag", ETAG)
+		.addHeader("Content-Range", "bytes "+mResumeOffset+'-'+(mPicture.length-1)+'/'+mPicture.length)
+		.setBody(getRemainingData()));
+		job.startLoading(cache);
+		CacheItem item = waitForStored(job.key);
+
+		assertResumed(server.takeRequest());
+		assertEquals(20, item.width);
+		assertEquals(10, item.height);
+	}
+
+	public void testWrongRangeIsNotAppended() throws Exception {
+		final PictureJob job = newJob("/picture.png");
+		storePartial(job);
+
+		// the range doesn't start at the end of the partial file
+		server.enqueue(new MockResponse()
+		.setResponseCode(206)
+		.addHeader("ETag", ETAG)
+		.addHeader("Content-Range", "bytes 0-"+(mPicture.length-1)+'/'+mPicture.length)
+		.setBody(mPicture));
+		// the retry starts from scratch
+		server.enqueue(new MockResponse()
+		.addHeader("ETag", ETAG)
+		.setBody(mPicture));
+		job.startLoading(cache);
+		CacheItem item = waitForStored(job.key);
+
+		assertResumed(server.takeRequest());
+		assertNull(server.takeRequest().getHeader("Range"));
+		assertEquals(20, item.width);
+		assertEquals(10, item.height);
+	}
+
+	public void testRangeIgnored() throws Exception {
+		final PictureJob job = newJob("/picture.png");
+		storePartial(job);
+
+		// the content changed, the server sends all of it
+		server.enqueue(new MockResponse()
+		.addHeader("ETag", "\"v2\"")
+		.setBody(mPicture));
+		job.startLoading(cache);
+		CacheItem item = waitForStored(job.key);
+
+		assertResumed(server.takeRequest());
+		assertEquals(1, server.getRequestCount());
+		assertEquals(20, item.width);
+		assertEquals(10, item.height);
+	}
+
+	public void testGetRangeStart() {
+		assertEquals(100, PartialDownload.getRangeStart("bytes 100-199/200"));
+		assertEquals(0, PartialDownload.getRangeStart("bytes 0-199/*"));
+		assertEquals(5, PartialDownload.getRangeStart(" Bytes 5-9/10"));
+		assertEquals(-1, PartialDownload.getRangeStart("bytes */200"));
+		assertEquals(-1, PartialDownload.getRangeStart("items 100-199/200"));
+		assertEquals(-1, PartialDownload.getRangeStart(""));
+		assertEquals(-1, PartialDownload.getRangeStart(null));
+	}
+}
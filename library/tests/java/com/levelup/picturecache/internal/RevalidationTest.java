@@ -0,0 +1,85 @@
+package com.levelup.picturecache.internal;
+
+import java.util.Arrays;
+
+import com.levelup.picturecache.PictureJob;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Expired items with validators are revalidated with a conditional request
+ */
+public class RevalidationTest extends DownloadTestCase {
+
+	private static final String ETAG = "\"v1\"";
+
+	/**
+	 * Store a picture that expires right away and can be revalidated
+	 * @return the stored item
+	 */
+	private CacheItem storeExpired(PictureJob job) throws InterruptedException {
+		server.enqueue(new MockResponse()
+		.addHeader("ETag", ETAG)
+		.addHeader("Cache-Control", "max-age=0")
+		.setBody(createPicture(10, 10)));
+		job.startLoading(cache);
+		CacheItem item = waitForStored(job.key);
+		assertNull(server.takeRequest().getHeader("If-None-Match"));
+		assertEquals(ETAG, item.eTag);
+		assertTrue(item.isExpired(System.currentTimeMillis()));
+		return item;
+	}
+
+	public void testNotModifiedKeepsTheFile() throws Exception {
+		final PictureJob job = newJob("/picture.png");
+		CacheItem item = storeExpired(job);
+		final byte[] storedData = readFile(item.path);
+		final long storedDate = item.path.lastModified();
+		final long validationDate = item.validationDate;
+		Thread.sleep(10);
+
+		server.enqueue(new MockResponse()
+		.setResponseCode(304)
+		.addHeader("ETag", ETAG)
+		.addHeader("Cache-Control", "max-age=60"));
+		newJob("/picture.png").startLoading(cache);
+		item = waitForItem(job.key, new ItemCondition() {
+			@Override
+			public boolean isMet(CacheItem item) {
+				return item.validationDate > validationDate;
+			}
+		});
+
+		RecordedRequest request = server.takeRequest();
+		assertEquals(ETAG, request.getHeader("If-None-Match"));
+		assertEquals(2, server.getRequestCount());
+		assertFalse(item.isExpired(System.currentTimeMillis()));
+		assertEquals(ETAG, item.eTag);
+		assertEquals(storedDate, item.path.lastModified());
+		assertTrue(Arrays.equals(storedData, readFile(item.path)));
+	}
+
+	public void testModifiedReplacesTheFile() throws Exception {
+		final PictureJob job = newJob("/picture.png");
+		CacheItem item = storeExpired(job);
+		final byte[] storedData = readFile(item.path);
+
+		server.enqueue(new MockResponse()
+		.addHeader("ETag", "\"v2\"")
+		.addHeader("Cache-Control", "max-age=60")
+		.setBody(createPicture(20, 20)));
+		newJob("/picture.png").startLoading(cache);
+		item = waitForItem(job.key, new ItemCondition() {
+			@Override
+			public boolean isMet(CacheItem item) {
+				return "\"v2\"".equals(item.eTag);
+			}
+		});
+
+		RecordedRequest request = server.takeRequest();
+		assertEquals(ETAG, request.getHeader("If-None-Match"));
+		assertEquals(20, item.width);
+		assertFalse(item.isExpired(System.currentTimeMillis()));
+		assertFalse(Arrays.equals(storedData, readFile(item.path)));
+	}
+}